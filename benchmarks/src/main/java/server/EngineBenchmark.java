@@ -0,0 +1,136 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Round trips of a trivial handler over keep-alive connections, one per benchmark thread, on both engines
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class EngineBenchmark {
+
+	private static final int PIPELINE_DEPTH = 8;
+	private static final byte[] BODY = "ok".getBytes(StandardCharsets.US_ASCII);
+
+	@State(Scope.Benchmark)
+	public static class Listener {
+
+		@Param({ "jdk", "nio" })
+		public String engine;
+
+		HttpServer server;
+		ServerExecutor executor;
+		int port;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+			server = Server.Engine.fromString(engine, Server.Engine.JDK) == Server.Engine.NIO
+					? new NioHttpServer(address, 0, 0, new BufferPool(16 * 1024, 4096), 60_000, 30_000)
+					: HttpServer.create(address, 0);
+			server.createContext("/", exchange -> {
+				exchange.sendResponseHeaders(200, BODY.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(BODY);
+				}
+			});
+			executor = new ServerExecutor(ServerExecutor.Mode.VIRTUAL, 32, 256);
+			server.setExecutor(executor);
+			server.start();
+			port = server.getAddress().getPort();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		private static final byte[] REQUEST = "GET /bench HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII);
+
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private byte[] pipelined;
+
+		@Setup(Level.Trial)
+		public void connect(Listener listener) throws IOException {
+			socket = new Socket("127.0.0.1", listener.port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			pipelined = new byte[REQUEST.length * PIPELINE_DEPTH];
+			for (int i = 0; i < PIPELINE_DEPTH; i++) {
+				System.arraycopy(REQUEST, 0, pipelined, i * REQUEST.length, REQUEST.length);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			socket.close();
+		}
+
+		// Skips the head, which has Content-Length: 2 from the handler above, and returns the body
+		int readResponse() throws IOException {
+			int matched = 0;
+			while (matched < 4) {
+				int b = in.read();
+				if (b < 0) {
+					throw new IOException("Connection closed by the server");
+				}
+				matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+			}
+			return in.read() + in.read();
+		}
+	}
+
+	@Benchmark
+	public int keepAlive(Client client) throws IOException {
+		client.out.write(Client.REQUEST);
+		client.out.flush();
+		return client.readResponse();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIPELINE_DEPTH)
+	public int pipelined(Client client) throws IOException {
+		client.out.write(client.pipelined);
+		client.out.flush();
+		int sum = 0;
+		for (int i = 0; i < PIPELINE_DEPTH; i++) {
+			sum += client.readResponse();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,111 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestHandlersBenchmark {
+
+	private static final String SHORT_QUERY = "username=alice&projectName=demo";
+	private static final String LONG_QUERY = "username=alice&projectName=my+web+project&fileName=assets%2Fimg%2Flogo+final.png"
+			+ "&email=alice.nguyen%40example.com&fileSize=1048576&note=caf%C3%A9+%26+cr%C3%AApes";
+	private static final String FORM_BODY = "email=alice.nguyen%40example.com&password=s3cr3t%21&confirm=s3cr3t%21"
+			+ "&username=alice&remember=on";
+
+	// Only the JSON benchmark depends on the row count, so it lives in its own state
+	@State(Scope.Thread)
+	public static class FileRows {
+		@Param({ "10", "100", "1000" })
+		public int rows;
+
+		MetadataStore.FileInfo[] files;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			files = new MetadataStore.FileInfo[rows];
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < rows; i++) {
+				files[i] = new MetadataStore.FileInfo("file-" + i + ".html", 512L << (i % 14),
+						new Timestamp(now - i * 37_000L));
+			}
+		}
+	}
+
+	private RequestHandlers handlers;
+	private StubHttpExchange formExchange;
+	private StubHttpExchange responseExchange;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Only the handlers are measured, so nothing needs a database or the html/ watcher
+		handlers = new RequestHandlers(ServerConfig.load(ServerConfig.DEFAULT_FILE)
+				.with("metadata.store", "memory").with("siteIndex.watch", "false"));
+		formExchange = new StubHttpExchange("POST", "/login", FORM_BODY.getBytes(StandardCharsets.UTF_8));
+		responseExchange = new StubHttpExchange("GET", "/getUserName");
+	}
+
+	@Benchmark
+	public Map<String, String> parseDataShort() {
+		return handlers.parseData(SHORT_QUERY);
+	}
+
+	@Benchmark
+	public Map<String, String> parseDataLong() {
+		return handlers.parseData(LONG_QUERY);
+	}
+
+	@Benchmark
+	public Map<String, String> parseRequestBody() throws IOException {
+		return handlers.parseRequestBody(formExchange.reset());
+	}
+
+	@Benchmark
+	public String getMimeType() {
+		return RequestHandlers.getMimeType("html/alice/demo/assets/style.css");
+	}
+
+	@Benchmark
+	public long sendResponse() throws IOException {
+		StubHttpExchange exchange = responseExchange.reset();
+		handlers.sendResponse(exchange, 200, "success");
+		return exchange.getBytesWritten();
+	}
+
+	@Benchmark
+	public long listFilesJson(FileRows rows) throws IOException {
+		StubHttpExchange exchange = responseExchange.reset();
+		try (JsonWriter json = new JsonWriter(new BufferedWriter(
+				new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192))) {
+			long now = System.currentTimeMillis();
+			json.beginArray();
+			for (MetadataStore.FileInfo file : rows.files) {
+				RequestHandlers.writeFileJson(json, file, now);
+			}
+			json.endArray();
+		}
+		return exchange.getBytesWritten();
+	}
+}
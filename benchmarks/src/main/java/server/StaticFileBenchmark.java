@@ -0,0 +1,93 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Serves files from html/bench/ under the working directory, which is created for the trial and removed afterwards
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StaticFileBenchmark {
+
+	private static final File BENCH_DIR = new File("html/bench");
+
+	@Param({ "/bench/index.html", "/bench/style.css", "/bench/logo.png" })
+	public String uri;
+
+	private RequestHandlers handlers;
+	private StubHttpExchange fullExchange;
+	private StubHttpExchange conditionalExchange;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		BENCH_DIR.mkdirs();
+		StringBuilder html = new StringBuilder("<html><body><form action=\"host/login\" method=\"post\">");
+		StringBuilder css = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			html.append("<p class=\"row-").append(i).append("\">Lorem ipsum dolor sit amet</p>");
+			css.append(".row-").append(i).append(" { margin: ").append(i % 16).append("px; color: #333; }\n");
+		}
+		html.append("</form></body></html>");
+		byte[] png = new byte[64 * 1024];
+		new Random(42).nextBytes(png);
+		Files.write(new File(BENCH_DIR, "index.html").toPath(), html.toString().getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(BENCH_DIR, "style.css").toPath(), css.toString().getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(BENCH_DIR, "logo.png").toPath(), png);
+
+		handlers = new Server(ServerConfig.load(ServerConfig.DEFAULT_FILE)).getRequestHandlers();
+		fullExchange = new StubHttpExchange("GET", uri);
+		fullExchange.getRequestHeaders().set("Accept-Encoding", "gzip, deflate");
+
+		// Prime the cache and pick up the validator a browser would send back
+		handlers.handleGetRequest(fullExchange, uri);
+		conditionalExchange = new StubHttpExchange("GET", uri);
+		conditionalExchange.getRequestHeaders().set("Accept-Encoding", "gzip, deflate");
+		conditionalExchange.getRequestHeaders().set("If-None-Match", fullExchange.getResponseHeaders().getFirst("ETag"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = BENCH_DIR.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		BENCH_DIR.delete();
+	}
+
+	@Benchmark
+	public long cachedFull() throws IOException {
+		StubHttpExchange exchange = fullExchange.reset();
+		handlers.handleGetRequest(exchange, uri);
+		return exchange.getBytesWritten();
+	}
+
+	@Benchmark
+	public int notModified() throws IOException {
+		StubHttpExchange exchange = conditionalExchange.reset();
+		handlers.handleGetRequest(exchange, uri);
+		return exchange.getResponseCode();
+	}
+}
@@ -0,0 +1,164 @@
+package server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+// In-memory exchange: the request body is replayed from a byte array and the response body
+// only counts bytes, so a benchmark measures the handler rather than the socket
+public class StubHttpExchange extends HttpExchange {
+
+	private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 50000);
+	private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 8080);
+
+	private final Headers requestHeaders = new Headers();
+	private final Headers responseHeaders = new Headers();
+	private final Map<String, Object> attributes = new HashMap<>();
+	private final CountingOutputStream counter = new CountingOutputStream();
+	private final String method;
+	private final URI uri;
+	private final ByteArrayInputStream replay;
+	// What the handler sees; a filter may swap them through setStreams
+	private InputStream requestBody;
+	private OutputStream responseBody;
+	private int responseCode = -1;
+
+	public StubHttpExchange(String method, String uri) {
+		this(method, uri, new byte[0]);
+	}
+
+	public StubHttpExchange(String method, String uri, byte[] requestBody) {
+		this.method = method;
+		this.uri = URI.create(uri);
+		this.replay = new ByteArrayInputStream(requestBody);
+		this.requestBody = replay;
+		this.responseBody = counter;
+	}
+
+	// Makes the exchange reusable across benchmark invocations without allocating a new one
+	public StubHttpExchange reset() {
+		responseHeaders.clear();
+		replay.reset();
+		counter.count = 0;
+		requestBody = replay;
+		responseBody = counter;
+		responseCode = -1;
+		return this;
+	}
+
+	public long getBytesWritten() {
+		return counter.count;
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return method;
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return responseBody;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) {
+		responseCode = rCode;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return REMOTE;
+	}
+
+	@Override
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return LOCAL;
+	}
+
+	@Override
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			requestBody = i;
+		}
+		if (o != null) {
+			responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public class AccessLog {
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+	private static final int BATCH_SIZE = 256;
+	// Producers unpark an idle writer, so this only bounds how long a missed wakeup can delay a batch
+	private static final long IDLE_PARK_NANOS = 500_000_000L;
+
+	// Kept small: only references and a timestamp are captured on the request thread
+	private static class Entry {
+		final long timestamp;
+		final String clientIP;
+		final String method;
+		final String uri;
+		final String email;
+		final String action;
+
+		Entry(long timestamp, String clientIP, String method, String uri, String email, String action) {
+			this.timestamp = timestamp;
+			this.clientIP = clientIP;
+			this.method = method;
+			this.uri = uri;
+			this.email = email;
+			this.action = action;
+		}
+
+		String toMessage() {
+			if (action == null) {
+				return "Request Method: " + method + ", URI: " + uri + ", IP_ADDRESS: " + clientIP;
+			}
+			return "Email: " + email + " from IP: " + clientIP
+					+ " performed action: " + action;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	// Ring position up to which entries have reached the file
+	private volatile long writtenPosition;
+	private volatile boolean writerIdle;
+
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private long reportedDropped;
+
+	private final File logFile;
+	private final long maxFileBytes;
+	private final int maxFiles;
+	private Writer writer;
+	private long currentFileBytes;
+
+	private volatile Consumer<String> consumer;
+	private volatile boolean running = true;
+	private final Thread writerThread;
+
+	public AccessLog(File logFile, int capacity, long maxFileBytes, int maxFiles) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.logFile = logFile;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = Math.max(1, maxFiles);
+		this.writerThread = new Thread(this::drainLoop, "access-log-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	public void setConsumer(Consumer<String> consumer) {
+		this.consumer = consumer;
+	}
+
+	public void logRequest(String clientIP, String method, String uri) {
+		offer(new Entry(System.currentTimeMillis(), clientIP, method, uri, null, null));
+	}
+
+	public void logAction(String clientIP, String email, String action) {
+		offer(new Entry(System.currentTimeMillis(), clientIP, null, null, email, action));
+	}
+
+	// Never blocks: when the writer falls behind, the entry is counted and dropped
+	private boolean offer(Entry entry) {
+		while (true) {
+			long current = head.get();
+			if (current - tail.get() >= slots.length()) {
+				droppedCount.incrementAndGet();
+				return false;
+			}
+			if (head.compareAndSet(current, current + 1)) {
+				slots.lazySet((int) (current & mask), entry);
+				if (writerIdle) {
+					LockSupport.unpark(writerThread);
+				}
+				return true;
+			}
+		}
+	}
+
+	private void drainLoop() {
+		StringBuilder batch = new StringBuilder(BATCH_SIZE * 96);
+		Entry[] entries = new Entry[BATCH_SIZE];
+		while (running || tail.get() != head.get()) {
+			int count = 0;
+			long position = tail.get();
+			while (count < BATCH_SIZE) {
+				int index = (int) (position & mask);
+				Entry entry = slots.get(index);
+				if (entry == null) {
+					break;
+				}
+				slots.lazySet(index, null);
+				entries[count++] = entry;
+				position++;
+			}
+			tail.set(position);
+
+			if (count == 0) {
+				// Announced before the last look at head, so a producer either sees it or is seen here
+				writerIdle = true;
+				if (tail.get() == head.get()) {
+					if (running) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+				} else {
+					// A producer has claimed a slot and is about to fill it
+					Thread.onSpinWait();
+				}
+				writerIdle = false;
+				continue;
+			}
+
+			batch.setLength(0);
+			Consumer<String> currentConsumer = consumer;
+			long dropped = droppedCount.get();
+			if (dropped != reportedDropped) {
+				batch.append(TIMESTAMP.format(Instant.now())).append(" Access log buffer full, dropped ")
+						.append(dropped - reportedDropped).append(" entries\n");
+				reportedDropped = dropped;
+			}
+			for (int i = 0; i < count; i++) {
+				Entry entry = entries[i];
+				entries[i] = null;
+				String message = entry.toMessage();
+				batch.append(TIMESTAMP.format(Instant.ofEpochMilli(entry.timestamp))).append(' ').append(message)
+						.append('\n');
+				if (currentConsumer != null) {
+					try {
+						currentConsumer.accept(message);
+					} catch (RuntimeException e) {
+						// A failing consumer must not stop the file log
+					}
+				}
+			}
+			write(batch);
+			writtenCount.addAndGet(count);
+			writtenPosition = position;
+		}
+		closeWriter();
+	}
+
+	private void write(CharSequence batch) {
+		try {
+			if (writer == null || currentFileBytes >= maxFileBytes) {
+				rotate();
+			}
+			writer.append(batch);
+			writer.flush();
+			currentFileBytes += batch.length();
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Could not write access log: " + e.getMessage());
+			closeWriter();
+		}
+	}
+
+	private void rotate() throws IOException {
+		closeWriter();
+		File parent = logFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		if (logFile.exists() && logFile.length() >= maxFileBytes) {
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File older = new File(logFile.getPath() + "." + i);
+				if (older.exists()) {
+					File target = new File(logFile.getPath() + "." + (i + 1));
+					target.delete();
+					older.renameTo(target);
+				}
+			}
+			File first = new File(logFile.getPath() + ".1");
+			first.delete();
+			logFile.renameTo(first);
+		}
+		currentFileBytes = logFile.length();
+		writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8), 64 * 1024);
+	}
+
+	private void closeWriter() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				// Nothing more can be written anyway
+			}
+			writer = null;
+		}
+	}
+
+	// Waits until everything logged so far is in the file; the writer keeps running
+	public void flush(long timeoutMillis) {
+		long target = head.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (writtenPosition < target && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(writerThread);
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Writes what is left and stops the writer for good
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	public int getPendingCount() {
+		return (int) (head.get() - tail.get());
+	}
+}
@@ -0,0 +1,215 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Turns requests away before they reach a handler: 429 when the client IP has used up its token bucket
+// for the route, 503 when the server already has admission.maxInFlight requests running or queued, or
+// the executor queue is full. Both answer at once with Retry-After instead of queueing the request
+// behind the ones that caused the overload. The in-flight count is taken by ServerExecutor when the
+// engine hands the exchange over, so an exchange over the limit never waits in the queue.
+public class AdmissionControl {
+
+	private static final byte[] RATE_LIMITED = "Too many requests.".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OVERLOADED = "Server is busy.".getBytes(StandardCharsets.UTF_8);
+
+	// Token bucket for one route, kept per client as a single timestamp (the generic cell rate algorithm):
+	// the time at which the client's bucket would be full again. A request is admitted when that time is at
+	// most burst - 1 intervals ahead of now, and pushes it one interval further, so checking and taking a
+	// token is one compare-and-set and a bucket that has refilled carries no state worth keeping.
+	public static class RateLimit {
+		private final String route;
+		private final long intervalNanos;
+		private final long toleranceNanos;
+		private final Map<String, AtomicLong> clients = new ConcurrentHashMap<>();
+		private final LongAdder rejected = new LongAdder();
+
+		RateLimit(String route, double rate, int burst) {
+			this.route = route;
+			this.intervalNanos = Math.max(1, (long) (1_000_000_000L / rate));
+			this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+		}
+
+		// 0 when admitted, otherwise the nanoseconds until the client's next token
+		long acquire(String client, long now) {
+			AtomicLong bucket = clients.computeIfAbsent(client, key -> new AtomicLong(now));
+			while (true) {
+				long full = bucket.get();
+				long start = Math.max(full, now);
+				if (start - now > toleranceNanos) {
+					return start - toleranceNanos - now;
+				}
+				if (bucket.compareAndSet(full, start + intervalNanos)) {
+					return 0;
+				}
+			}
+		}
+
+		void evictRefilled(long now) {
+			clients.values().removeIf(bucket -> bucket.get() <= now);
+		}
+
+		public String getRoute() {
+			return route;
+		}
+
+		public int getClientCount() {
+			return clients.size();
+		}
+
+		public long getRejectedCount() {
+			return rejected.sum();
+		}
+	}
+
+	private final int maxInFlight;
+	private final int maxClients;
+	private final ServerConfig config;
+	private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> overloadedCounts = new ConcurrentHashMap<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	public AdmissionControl(ServerConfig config) {
+		this.config = config;
+		this.maxInFlight = config.getInt("admission.maxInFlight", 256);
+		this.maxClients = config.getInt("rateLimit.maxClients", 100_000);
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rate-limit-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long evictIntervalMillis = Math.max(1000, config.getLong("rateLimit.evictIntervalMillis", 10_000));
+		evictor.scheduleWithFixedDelay(this::evictRefilled, evictIntervalMillis, evictIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	// rateLimit.<route>=rate,burst overrides rateLimit.default; a rate of 0 turns limiting off for the route
+	public HttpHandler wrap(String route, HttpHandler handler) {
+		// Contexts are set up again on every start and restart; the route keeps its buckets and counts, and
+		// a listener still draining shares them with its replacement
+		RateLimit rateLimit = rateLimits.computeIfAbsent(route, this::createRateLimit);
+		// Metrics scrapes have to get through precisely when the server is overloaded
+		boolean exempt = route.equals("/metrics");
+		LongAdder overloaded = overloadedCounts.computeIfAbsent(route, key -> new LongAdder());
+		return exchange -> {
+			// Metrics scrapes turned away by the executor are still answered, on its overflow thread
+			if (ServerExecutor.isOverflow() && !exempt) {
+				overloaded.increment();
+				reject(exchange, 503, TimeUnit.SECONDS.toNanos(1), OVERLOADED);
+				return;
+			}
+			if (rateLimit != null) {
+				long waitNanos = rateLimit.acquire(clientOf(exchange), System.nanoTime());
+				if (waitNanos > 0) {
+					rateLimit.rejected.increment();
+					reject(exchange, 429, waitNanos, RATE_LIMITED);
+					return;
+				}
+				if (rateLimit.clients.size() > maxClients) {
+					evictRefilled();
+				}
+			}
+			handler.handle(exchange);
+		};
+	}
+
+	// Called by ServerExecutor before the exchange is queued; false when it has to be turned away
+	boolean tryEnter() {
+		if (inFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+			inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	void exit() {
+		inFlight.decrementAndGet();
+	}
+
+	private RateLimit createRateLimit(String route) {
+		String setting = config.getString("rateLimit." + route, config.getString("rateLimit.default", "50,100"));
+		String[] parts = setting.split(",");
+		double rate;
+		int burst;
+		try {
+			rate = Double.parseDouble(parts[0].trim());
+			burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : (int) Math.ceil(rate);
+		} catch (NumberFormatException e) {
+			RequestHandlers.logger.warning("Ignoring malformed rate limit for " + route + ": " + setting);
+			return null;
+		}
+		if (rate <= 0) {
+			return null;
+		}
+		return new RateLimit(route, rate, burst);
+	}
+
+	private static String clientOf(HttpExchange exchange) {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		if (address == null) {
+			return "";
+		}
+		return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+	}
+
+	private static void reject(HttpExchange exchange, int status, long waitNanos, byte[] body) throws IOException {
+		long seconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+		exchange.getResponseHeaders().set("Retry-After", String.valueOf(seconds));
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	// Also run from the request path when a route tracks more than rateLimit.maxClients clients
+	private void evictRefilled() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = System.nanoTime();
+			for (RateLimit rateLimit : rateLimits.values()) {
+				rateLimit.evictRefilled(now);
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	public Map<String, RateLimit> getRateLimits() {
+		return new TreeMap<>(rateLimits);
+	}
+
+	public Map<String, Long> getOverloadedCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : overloadedCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+}
@@ -0,0 +1,492 @@
+package server;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Reads the files of a zip, tar (optionally gzipped) or multipart/form-data body one at a time,
+// straight from the request stream. Each entry's content must be read before calling next();
+// whatever is left of it is skipped.
+public abstract class ArchiveReader {
+
+	public static class Entry {
+		private final String name;
+		private final long size;
+		private final boolean directory;
+		private final InputStream content;
+
+		Entry(String name, long size, boolean directory, InputStream content) {
+			this.name = name;
+			this.size = size;
+			this.directory = directory;
+			this.content = content;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// -1 when the format does not say in advance
+		public long getSize() {
+			return size;
+		}
+
+		public boolean isDirectory() {
+			return directory;
+		}
+
+		public InputStream getContent() {
+			return content;
+		}
+	}
+
+	// Returns null once the archive has no more entries
+	public abstract Entry next() throws IOException;
+
+	// format is the client's explicit choice (zip, tar or tgz) and wins over the Content-Type.
+	// Returns null for a body this class cannot read
+	public static ArchiveReader open(String format, String contentType, InputStream body) throws IOException {
+		String type = contentType != null ? contentType.toLowerCase() : "";
+		if ("zip".equalsIgnoreCase(format)
+				|| (format == null && (type.startsWith("application/zip") || type.startsWith("application/x-zip")))) {
+			return new Zip(body);
+		}
+		if ("tar".equalsIgnoreCase(format) || (format == null && type.startsWith("application/x-tar"))) {
+			return new Tar(body);
+		}
+		if ("tgz".equalsIgnoreCase(format) || (format == null
+				&& (type.startsWith("application/gzip") || type.startsWith("application/x-gzip")
+						|| type.startsWith("application/x-compressed-tar")))) {
+			return new Tar(new GZIPInputStream(body, 64 * 1024));
+		}
+		if (format == null && type.startsWith("multipart/form-data")) {
+			String boundary = parameter(contentType, "boundary");
+			return boundary != null && !boundary.isEmpty() && boundary.length() <= 70 ? new Multipart(body, boundary)
+					: null;
+		}
+		return null;
+	}
+
+	// Keeps an entry's consumer from closing the archive underneath the reader
+	private static class EntryStream extends FilterInputStream {
+		EntryStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class Zip extends ArchiveReader {
+		private final ZipInputStream zip;
+
+		Zip(InputStream body) {
+			this.zip = new ZipInputStream(body, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public Entry next() throws IOException {
+			ZipEntry entry = zip.getNextEntry();
+			if (entry == null) {
+				return null;
+			}
+			return new Entry(entry.getName(), entry.getSize(), entry.isDirectory(), new EntryStream(zip));
+		}
+	}
+
+	// ustar, with GNU long names ('L') and pax 'path' records; other special entries are skipped
+	private static class Tar extends ArchiveReader {
+		private static final int BLOCK = 512;
+
+		private final InputStream in;
+		private final byte[] header = new byte[BLOCK];
+		private long remaining;
+		private long padding;
+
+		Tar(InputStream body) {
+			this.in = body;
+		}
+
+		@Override
+		public Entry next() throws IOException {
+			String longName = null;
+			while (true) {
+				skip(remaining + padding);
+				remaining = 0;
+				padding = 0;
+				if (!readBlock(header)) {
+					return null;
+				}
+				if (isZeroBlock(header)) {
+					return null;
+				}
+				long size = parseOctal(header, 124, 12);
+				char type = (char) header[156];
+				remaining = size;
+				padding = (BLOCK - size % BLOCK) % BLOCK;
+
+				if (type == 'L' || type == 'x') {
+					String data = readString(size);
+					if (type == 'L') {
+						longName = trimNul(data);
+					} else {
+						String path = paxPath(data);
+						if (path != null) {
+							longName = path;
+						}
+					}
+					continue;
+				}
+				String name = longName != null ? longName : headerName();
+				longName = null;
+				if (type == '5') {
+					return new Entry(name, 0, true, InputStream.nullInputStream());
+				}
+				if (type != '0' && type != '\0' && type != '7') {
+					// Links, devices and the like carry no file content worth extracting
+					continue;
+				}
+				return new Entry(name, size, false, new EntryContent());
+			}
+		}
+
+		private class EntryContent extends InputStream {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining == 0) {
+					return -1;
+				}
+				int read = in.read(b, off, (int) Math.min(len, remaining));
+				if (read < 0) {
+					throw new EOFException("Tar archive ended inside an entry");
+				}
+				remaining -= read;
+				return read;
+			}
+		}
+
+		private String headerName() {
+			String name = field(0, 100);
+			// ustar splits long paths into a prefix and a name
+			if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+					&& header[261] == 'r') {
+				String prefix = field(345, 155);
+				if (!prefix.isEmpty()) {
+					name = prefix + "/" + name;
+				}
+			}
+			return name;
+		}
+
+		private String field(int offset, int length) {
+			int end = offset;
+			while (end < offset + length && header[end] != 0) {
+				end++;
+			}
+			return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+		}
+
+		private String readString(long size) throws IOException {
+			if (size > 64 * 1024) {
+				throw new IOException("Tar extended header too large");
+			}
+			byte[] data = in.readNBytes((int) size);
+			if (data.length != size) {
+				throw new EOFException("Tar archive ended inside a header");
+			}
+			remaining = 0;
+			return new String(data, StandardCharsets.UTF_8);
+		}
+
+		// Records are "<length> <key>=<value>\n"
+		private static String paxPath(String data) {
+			int start = 0;
+			while (start < data.length()) {
+				int space = data.indexOf(' ', start);
+				if (space < 0) {
+					return null;
+				}
+				int length;
+				try {
+					length = Integer.parseInt(data.substring(start, space));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (length <= 0 || start + length > data.length()) {
+					return null;
+				}
+				String record = data.substring(space + 1, start + length - 1);
+				if (record.startsWith("path=")) {
+					return record.substring(5);
+				}
+				start += length;
+			}
+			return null;
+		}
+
+		private static String trimNul(String value) {
+			int end = value.indexOf('\0');
+			return end >= 0 ? value.substring(0, end) : value;
+		}
+
+		private boolean readBlock(byte[] block) throws IOException {
+			int read = in.readNBytes(block, 0, BLOCK);
+			if (read == 0) {
+				return false;
+			}
+			if (read < BLOCK) {
+				throw new EOFException("Tar archive ended inside a header");
+			}
+			return true;
+		}
+
+		// Read rather than skipped: the HttpServer request stream's skip() bypasses its Content-Length accounting
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				int read = in.read(header, 0, (int) Math.min(count, BLOCK));
+				if (read < 0) {
+					throw new EOFException("Tar archive ended inside an entry");
+				}
+				count -= read;
+			}
+		}
+
+		private static boolean isZeroBlock(byte[] block) {
+			for (byte b : block) {
+				if (b != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long parseOctal(byte[] block, int offset, int length) throws IOException {
+			long value = 0;
+			for (int i = offset; i < offset + length; i++) {
+				byte b = block[i];
+				if (b == 0 || b == ' ') {
+					if (value != 0) {
+						break;
+					}
+					continue;
+				}
+				if (b < '0' || b > '7') {
+					throw new IOException("Invalid tar header");
+				}
+				value = value * 8 + (b - '0');
+			}
+			return value;
+		}
+	}
+
+	// Each part with a filename is an entry; plain form fields are skipped
+	private static class Multipart extends ArchiveReader {
+		private static final int MAX_HEADER_LINE = 8192;
+
+		private final InputStream in;
+		private final byte[] delimiter;
+		private final byte[] buffer = new byte[64 * 1024];
+		private int pos;
+		private int limit;
+		// Where the next delimiter starts in the buffer, or -1 if it is not in [pos, limit)
+		private int delimiterAt = -1;
+		private boolean scanned;
+		private boolean partEnded;
+		private boolean finished;
+
+		Multipart(InputStream body, String boundary) {
+			this.in = body;
+			this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+			// The first boundary has no CRLF in front of it; supplying one lets the preamble be skipped like a part
+			buffer[0] = '\r';
+			buffer[1] = '\n';
+			limit = 2;
+		}
+
+		@Override
+		public Entry next() throws IOException {
+			byte[] skipBuffer = null;
+			while (!finished) {
+				if (!partEnded) {
+					if (skipBuffer == null) {
+						skipBuffer = new byte[8192];
+					}
+					while (readPart(skipBuffer, 0, skipBuffer.length) >= 0) {
+						// Skips the unread rest of the previous part
+					}
+				}
+				// "--" after a delimiter closes the body; otherwise the rest of the line is padding
+				if (readLine().startsWith("--")) {
+					finished = true;
+					return null;
+				}
+				String fileName = null;
+				String line;
+				while (!(line = readLine()).isEmpty()) {
+					int colon = line.indexOf(':');
+					if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+						fileName = parameter(line.substring(colon + 1), "filename");
+					}
+				}
+				partEnded = false;
+				if (fileName != null && !fileName.isEmpty()) {
+					return new Entry(fileName, -1, false, new PartContent());
+				}
+			}
+			return null;
+		}
+
+		private class PartContent extends InputStream {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return readPart(b, off, len);
+			}
+		}
+
+		private int readPart(byte[] b, int off, int len) throws IOException {
+			if (partEnded) {
+				return -1;
+			}
+			while (true) {
+				if (!scanned) {
+					delimiterAt = indexOf(delimiter, pos, limit);
+					scanned = true;
+				}
+				int available;
+				if (delimiterAt >= 0) {
+					available = delimiterAt - pos;
+					if (available == 0) {
+						pos += delimiter.length;
+						scanned = false;
+						partEnded = true;
+						return -1;
+					}
+				} else {
+					// The tail could be the start of a delimiter, so it is held back until more data arrives
+					available = limit - pos - (delimiter.length - 1);
+					if (available <= 0) {
+						if (!fill()) {
+							throw new EOFException("Multipart body ended inside a part");
+						}
+						continue;
+					}
+				}
+				int count = Math.min(available, len);
+				System.arraycopy(buffer, pos, b, off, count);
+				pos += count;
+				return count;
+			}
+		}
+
+		private String readLine() throws IOException {
+			while (true) {
+				for (int i = pos; i + 1 < limit; i++) {
+					if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+						String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+						pos = i + 2;
+						scanned = false;
+						return line;
+					}
+				}
+				if (limit - pos >= MAX_HEADER_LINE) {
+					throw new IOException("Multipart header line too long");
+				}
+				if (!fill()) {
+					throw new EOFException("Multipart body ended inside a header");
+				}
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (pos > 0) {
+				System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				return false;
+			}
+			limit += read;
+			scanned = false;
+			return true;
+		}
+
+		private int indexOf(byte[] pattern, int from, int to) {
+			byte first = pattern[0];
+			for (int i = from; i <= to - pattern.length; i++) {
+				if (buffer[i] != first) {
+					continue;
+				}
+				int j = 1;
+				while (j < pattern.length && buffer[i + j] == pattern[j]) {
+					j++;
+				}
+				if (j == pattern.length) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	// Value of a "; key=value" or "; key=\"value\"" parameter in a header
+	private static String parameter(String header, String key) {
+		int length = header.length();
+		int i = 0;
+		while (i < length) {
+			int semicolon = header.indexOf(';', i);
+			if (semicolon < 0) {
+				return null;
+			}
+			i = semicolon + 1;
+			while (i < length && header.charAt(i) == ' ') {
+				i++;
+			}
+			int equals = header.indexOf('=', i);
+			if (equals < 0) {
+				return null;
+			}
+			String name = header.substring(i, equals).trim();
+			i = equals + 1;
+			StringBuilder value = new StringBuilder();
+			if (i < length && header.charAt(i) == '"') {
+				i++;
+				while (i < length && header.charAt(i) != '"') {
+					char c = header.charAt(i++);
+					if (c == '\\' && i < length) {
+						c = header.charAt(i++);
+					}
+					value.append(c);
+				}
+				i++;
+			} else {
+				while (i < length && header.charAt(i) != ';') {
+					value.append(header.charAt(i++));
+				}
+			}
+			if (name.equalsIgnoreCase(key)) {
+				return value.toString().trim();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,59 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Direct buffers cost a system allocation and are only freed by the GC, so the NIO engine recycles
+// them. A connection holds a read buffer only while it has unparsed bytes, and a write buffer only
+// while a response is being written, so idle keep-alive connections cost no buffer memory.
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledCount = new AtomicInteger();
+	private final LongAdder allocatedCount = new LongAdder();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	// Cleared, ready to be filled
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer != null) {
+			pooledCount.decrementAndGet();
+			return buffer.clear();
+		}
+		allocatedCount.increment();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (pooledCount.incrementAndGet() <= maxPooled) {
+			free.offer(buffer);
+		} else {
+			// Left to the GC, so a burst does not pin its peak buffer count forever
+			pooledCount.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+
+	public long getAllocatedCount() {
+		return allocatedCount.sum();
+	}
+}
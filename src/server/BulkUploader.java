@@ -0,0 +1,240 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Extracts an archive into a project while it is still arriving. Small entries are read into memory
+// and written (temp file, fsync, rename) by a pool of writer threads, so the disk works on several
+// files while the next ones are read off the socket; entries too large to buffer are streamed to disk
+// on the request thread. The buffered bytes are capped across all requests, which holds the reader
+// back when the writers fall behind.
+public class BulkUploader {
+
+	public static class Result {
+		private final String name;
+		private final long size;
+		private final String error;
+
+		Result(String name, long size, String error) {
+			this.name = name;
+			this.size = size;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		// Null when the file was written
+		public String getError() {
+			return error;
+		}
+	}
+
+	private final UploadManager uploadManager;
+	private final ExecutorService writers;
+	private final Semaphore bufferedBytes;
+	private final int maxBufferedEntryBytes;
+	private final int maxEntries;
+	private final long maxBytes;
+
+	public BulkUploader(UploadManager uploadManager, int writerThreads, int maxBufferedBytes, int maxBufferedEntryBytes,
+			int maxEntries, long maxBytes) {
+		this.uploadManager = uploadManager;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.writers = Executors.newFixedThreadPool(Math.max(1, writerThreads), runnable -> {
+			Thread thread = new Thread(runnable, "bulk-upload-writer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.maxBufferedEntryBytes = Math.max(1, Math.min(maxBufferedEntryBytes, maxBufferedBytes));
+		this.bufferedBytes = new Semaphore(Math.max(this.maxBufferedEntryBytes, maxBufferedBytes));
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	// Results are in archive order; directory entries are not reported. Reading stops at the first
+	// error in the archive itself or at a limit, which is thrown after the writes already started have
+	// finished and been added to results, so the caller can record those files
+	public void extract(ArchiveReader archive, File projectDir, List<Result> results)
+			throws IOException, UploadManager.UploadException {
+		List<Future<Result>> pending = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		long[] totalBytes = { 0 };
+		Exception failure = null;
+		try {
+			ArchiveReader.Entry entry;
+			while ((entry = archive.next()) != null) {
+				if (entry.isDirectory()) {
+					continue;
+				}
+				if (pending.size() == maxEntries) {
+					throw new UploadManager.UploadException(413, "Archive has more than " + maxEntries + " files.");
+				}
+				String name = normalize(entry.getName());
+				if (name == null) {
+					pending.add(completed(new Result(entry.getName(), -1, "Invalid file name.")));
+					continue;
+				}
+				if (!names.add(name)) {
+					pending.add(completed(new Result(name, -1, "Duplicate file name.")));
+					continue;
+				}
+				pending.add(write(new LimitedStream(entry.getContent(), totalBytes), entry.getSize(), name,
+						new File(projectDir, name)));
+			}
+		} catch (LimitExceededException e) {
+			failure = new UploadManager.UploadException(413, e.getMessage());
+		} catch (IOException | UploadManager.UploadException | RuntimeException e) {
+			failure = e;
+		}
+
+		long waitStart = System.nanoTime();
+		for (Future<Result> future : pending) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing uploaded files");
+			} catch (ExecutionException e) {
+				// write() turns every failure into a Result, so this is a bug rather than a disk error
+				throw new IOException(e.getCause());
+			}
+		}
+		ServerMetrics.recordDiskTime(System.nanoTime() - waitStart);
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof UploadManager.UploadException) {
+			throw (UploadManager.UploadException) failure;
+		}
+		if (failure != null) {
+			throw (RuntimeException) failure;
+		}
+	}
+
+	private Future<Result> write(InputStream content, long size, String name, File destination)
+			throws IOException {
+		byte[] data = size >= 0 && size <= maxBufferedEntryBytes ? content.readNBytes((int) size + 1)
+				: content.readNBytes(maxBufferedEntryBytes + 1);
+		if (data.length > maxBufferedEntryBytes) {
+			// Too big to hold in memory: stream it, starting with the bytes already read
+			long streamStart = System.nanoTime();
+			try {
+				long written = uploadManager.receiveFile(
+						new SequenceInputStream(new ByteArrayInputStream(data), content), destination, -1);
+				return completed(new Result(name, written, null));
+			} catch (IOException e) {
+				if (e instanceof LimitExceededException) {
+					throw e;
+				}
+				return completed(new Result(name, -1, "Write failed."));
+			} finally {
+				ServerMetrics.recordDiskTime(System.nanoTime() - streamStart);
+			}
+		}
+
+		int length = data.length;
+		try {
+			bufferedBytes.acquire(Math.max(1, length));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for upload writers");
+		}
+		return writers.submit(() -> {
+			try {
+				uploadManager.receiveFile(data, length, destination);
+				return new Result(name, length, null);
+			} catch (IOException e) {
+				return new Result(name, -1, "Write failed.");
+			} finally {
+				bufferedBytes.release(Math.max(1, length));
+			}
+		});
+	}
+
+	// Relative '/'-separated path inside the project, or null if the entry would land outside it
+	static String normalize(String name) {
+		String path = name.replace('\\', '/');
+		StringBuilder result = new StringBuilder(path.length());
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty() || segment.equals(".")) {
+				continue;
+			}
+			if (segment.equals("..") || segment.indexOf(':') >= 0 || segment.indexOf('\0') >= 0) {
+				return null;
+			}
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(segment);
+		}
+		return result.length() > 0 && !path.startsWith("/") ? result.toString() : null;
+	}
+
+	private static class LimitExceededException extends IOException {
+		LimitExceededException(String message) {
+			super(message);
+		}
+	}
+
+	// Counts extracted bytes against maxBytes, so a small archive cannot expand without bound
+	private class LimitedStream extends FilterInputStream {
+		private final long[] totalBytes;
+
+		LimitedStream(InputStream in, long[] totalBytes) {
+			super(in);
+			this.totalBytes = totalBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		private void count(int read) throws IOException {
+			totalBytes[0] += read;
+			if (totalBytes[0] > maxBytes) {
+				throw new LimitExceededException("Archive expands to more than " + maxBytes + " bytes.");
+			}
+		}
+	}
+
+	private static Future<Result> completed(Result result) {
+		return CompletableFuture.completedFuture(result);
+	}
+}
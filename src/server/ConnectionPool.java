@@ -0,0 +1,335 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionPool {
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutMillis;
+	private final long acquireTimeoutMillis;
+	private final long validationIntervalMillis;
+	private final long leakThresholdMillis;
+	// Capturing a stack trace on every borrow is costly, so it is only done while hunting a leak
+	private final boolean leakTrace;
+
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+	private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+	private final Semaphore permits;
+	private final ScheduledExecutorService housekeeper;
+	// Set by shutdown: connections still borrowed are closed when they come back instead of pooled again
+	private volatile boolean closed;
+
+	private final AtomicInteger totalCount = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong leakCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	public ConnectionPool(String url, String user, String password, int minSize, int maxSize, long idleTimeoutMillis,
+			long acquireTimeoutMillis, long validationIntervalMillis, long leakThresholdMillis, boolean leakTrace) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.validationIntervalMillis = validationIntervalMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.leakTrace = leakTrace && leakThresholdMillis > 0;
+		this.permits = new Semaphore(this.maxSize, true);
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "db-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.housekeeper.scheduleWithFixedDelay(this::housekeep, 0, 30, TimeUnit.SECONDS);
+	}
+
+	public Connection borrow() throws SQLException {
+		checkOpen();
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+
+		try {
+			checkOpen();
+			PooledConnection pooled = takeValidIdleConnection();
+			if (pooled == null) {
+				pooled = createConnection();
+			}
+			pooled.borrowedAt = System.currentTimeMillis();
+			pooled.borrowTrace = leakTrace ? new Throwable("Connection borrowed here") : null;
+			pooled.leakReported = false;
+			borrowed.add(pooled);
+
+			long waited = System.nanoTime() - start;
+			borrowCount.incrementAndGet();
+			totalWaitNanos.addAndGet(waited);
+			maxWaitNanos.accumulateAndGet(waited, Math::max);
+			return pooled.newHandle(start);
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void checkOpen() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool has been shut down");
+		}
+	}
+
+	private PooledConnection takeValidIdleConnection() {
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis || isValid(pooled)) {
+				return pooled;
+			}
+			destroy(pooled);
+		}
+		return null;
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.connection.isValid(2);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private PooledConnection createConnection() throws SQLException {
+		Connection connection = DriverManager.getConnection(url, user, password);
+		totalCount.incrementAndGet();
+		createdCount.incrementAndGet();
+		return new PooledConnection(connection);
+	}
+
+	private void release(PooledConnection pooled) {
+		borrowed.remove(pooled);
+		pooled.lastUsed = System.currentTimeMillis();
+		pooled.borrowTrace = null;
+		try {
+			if (closed || pooled.connection.isClosed()) {
+				destroy(pooled);
+			} else {
+				if (!pooled.connection.getAutoCommit()) {
+					pooled.connection.rollback();
+					pooled.connection.setAutoCommit(true);
+				}
+				// LIFO keeps recently used connections warm and lets the tail age out
+				idle.offerFirst(pooled);
+				// shutdown may have drained the idle queue between the check above and the offer
+				if (closed && idle.remove(pooled)) {
+					destroy(pooled);
+				}
+			}
+		} catch (SQLException e) {
+			destroy(pooled);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void destroy(PooledConnection pooled) {
+		totalCount.decrementAndGet();
+		try {
+			pooled.connection.close();
+		} catch (SQLException e) {
+			// Already broken, nothing left to release
+		}
+	}
+
+	private void housekeep() {
+		long now = System.currentTimeMillis();
+
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while (it.hasNext() && totalCount.get() > minSize) {
+			PooledConnection pooled = it.next();
+			if (now - pooled.lastUsed > idleTimeoutMillis && idle.removeLastOccurrence(pooled)) {
+				evictedCount.incrementAndGet();
+				destroy(pooled);
+			}
+		}
+
+		while (!closed && totalCount.get() < minSize) {
+			try {
+				PooledConnection pooled = createConnection();
+				pooled.lastUsed = now;
+				idle.offerLast(pooled);
+				if (closed && idle.remove(pooled)) {
+					destroy(pooled);
+				}
+			} catch (SQLException e) {
+				RequestHandlers.logger.warning("Could not pre-fill connection pool: " + e.getMessage());
+				break;
+			}
+		}
+
+		if (leakThresholdMillis > 0) {
+			for (PooledConnection pooled : borrowed) {
+				if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMillis) {
+					pooled.leakReported = true;
+					leakCount.incrementAndGet();
+					Throwable trace = pooled.borrowTrace;
+					RequestHandlers.logger.warning("Possible connection leak: connection held for "
+							+ (now - pooled.borrowedAt) + " ms");
+					if (trace != null) {
+						trace.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	public void shutdown() {
+		closed = true;
+		housekeeper.shutdownNow();
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			destroy(pooled);
+		}
+	}
+
+	public int getBorrowedCount() {
+		return borrowed.size();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getTotalCount() {
+		return totalCount.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getPendingCount() {
+		return permits.getQueueLength();
+	}
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	public double getAverageWaitMillis() {
+		long borrows = borrowCount.get();
+		return borrows == 0 ? 0 : totalWaitNanos.get() / (borrows * 1_000_000.0);
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1_000_000.0;
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	public long getLeakCount() {
+		return leakCount.get();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionPool[total=" + getTotalCount() + ", borrowed=" + getBorrowedCount() + ", idle="
+				+ getIdleCount() + ", pending=" + getPendingCount() + ", avgWaitMs="
+				+ String.format("%.2f", getAverageWaitMillis()) + ", timeouts=" + getTimeoutCount() + ", leaks="
+				+ getLeakCount() + "]";
+	}
+
+	private class PooledConnection {
+		final Connection connection;
+		volatile long lastUsed = System.currentTimeMillis();
+		volatile long borrowedAt;
+		volatile Throwable borrowTrace;
+		volatile boolean leakReported;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		// Each borrow gets its own handle so a stale reference cannot return the connection twice
+		Connection newHandle(long borrowStartNanos) {
+			boolean[] closed = new boolean[1];
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+						String name = method.getName();
+						if ("close".equals(name)) {
+							synchronized (closed) {
+								if (!closed[0]) {
+									closed[0] = true;
+									release(this);
+									ServerMetrics.recordDbTime(System.nanoTime() - borrowStartNanos);
+								}
+							}
+							return null;
+						}
+						if ("isClosed".equals(name)) {
+							return closed[0] || connection.isClosed();
+						}
+						if ("equals".equals(name)) {
+							return proxy == args[0];
+						}
+						if ("hashCode".equals(name)) {
+							return System.identityHashCode(proxy);
+						}
+						if ("toString".equals(name)) {
+							return "Pooled" + connection;
+						}
+						if (closed[0]) {
+							throw new SQLException("Connection has already been returned to the pool");
+						}
+						return invoke(method, args);
+					});
+		}
+
+		private Object invoke(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
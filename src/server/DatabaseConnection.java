@@ -1,7 +1,6 @@
 package server;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class DatabaseConnection {
@@ -10,7 +9,42 @@ public class DatabaseConnection {
 	private static final String DB_USER = "root";
 	private static final String DB_PASSWORD = "";
 
+	private static ServerConfig config = ServerConfig.load(ServerConfig.DEFAULT_FILE);
+	// Volatile so borrowing reads it without taking the class lock once the pool exists
+	private static volatile ConnectionPool pool;
+
+	public static synchronized void configure(ServerConfig serverConfig) {
+		shutdown();
+		config = serverConfig;
+	}
+
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	public static ConnectionPool getPool() {
+		ConnectionPool current = pool;
+		return current != null ? current : createPool();
+	}
+
+	// Created on first use, so a server on the in-memory store never connects to MySQL
+	private static synchronized ConnectionPool createPool() {
+		if (pool == null) {
+			pool = new ConnectionPool(config.getString("db.url", DB_URL), config.getString("db.user", DB_USER),
+					config.getString("db.password", DB_PASSWORD), config.getInt("db.pool.minSize", 2),
+					config.getInt("db.pool.maxSize", 16), config.getLong("db.pool.idleTimeoutMillis", 300_000),
+					config.getLong("db.pool.acquireTimeoutMillis", 5_000),
+					config.getLong("db.pool.validationIntervalMillis", 1_000),
+					config.getLong("db.pool.leakThresholdMillis", 60_000),
+					config.getBoolean("db.pool.leakTrace", false));
+		}
+		return pool;
+	}
+
 	public static Connection getConnection() throws SQLException {
-		return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+		return getPool().borrow();
 	}
 }
@@ -0,0 +1,137 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+
+// One page of a project listing. Pages are keyed on the sort column with FileName as the
+// tie-breaker (unique within a project), so a page costs the same wherever it starts and
+// files added or removed between requests never shift rows across the page boundary.
+public class FileQuery {
+
+	public enum Sort {
+		NAME, TIME, SIZE
+	}
+
+	private final Sort sort;
+	private final boolean descending;
+	private final long afterValue;
+	private final String afterName;
+	private final int limit;
+
+	public FileQuery(Sort sort, boolean descending, long afterValue, String afterName, int limit) {
+		this.sort = sort;
+		this.descending = descending;
+		this.afterValue = afterValue;
+		this.afterName = afterName;
+		this.limit = limit;
+	}
+
+	// Unpaged listing in name order, as listFilesInProject returned before pagination
+	public static FileQuery all() {
+		return new FileQuery(Sort.NAME, false, 0, null, 0);
+	}
+
+	// Throws IllegalArgumentException with a message fit for a 400 response
+	public static FileQuery parse(String sort, String order, String cursor, int limit) {
+		Sort parsedSort = Sort.NAME;
+		if (sort != null && !sort.isEmpty()) {
+			try {
+				parsedSort = Sort.valueOf(sort.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown sort: " + sort + " (expected name, time or size)");
+			}
+		}
+		boolean descending = "desc".equalsIgnoreCase(order);
+		if (order != null && !descending && !"asc".equalsIgnoreCase(order)) {
+			throw new IllegalArgumentException("Unknown order: " + order + " (expected asc or desc)");
+		}
+		if (cursor == null || cursor.isEmpty()) {
+			return new FileQuery(parsedSort, descending, 0, null, limit);
+		}
+
+		// Token: sort, direction, sort value and file name, so a cursor cannot be replayed under another ordering
+		String[] parts;
+		try {
+			parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 4);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+		if (parts.length != 4 || !parts[0].equals(parsedSort.name()) || !parts[1].equals(descending ? "d" : "a")) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+		try {
+			return new FileQuery(parsedSort, descending, Long.parseLong(parts[2]), parts[3], limit);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+	}
+
+	public String cursorAfter(MetadataStore.FileInfo file) {
+		String token = sort.name() + "\n" + (descending ? "d" : "a") + "\n" + sortValue(file) + "\n" + file.getFileName();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// The same query resumed after the given file
+	public FileQuery after(MetadataStore.FileInfo file) {
+		return new FileQuery(sort, descending, sortValue(file), file.getFileName(), limit);
+	}
+
+	public FileQuery withLimit(int newLimit) {
+		return new FileQuery(sort, descending, afterValue, afterName, newLimit);
+	}
+
+	public long sortValue(MetadataStore.FileInfo file) {
+		switch (sort) {
+		case TIME:
+			return file.getTimeUpload().getTime();
+		case SIZE:
+			return file.getFileSize();
+		default:
+			return 0;
+		}
+	}
+
+	public Comparator<MetadataStore.FileInfo> comparator() {
+		Comparator<MetadataStore.FileInfo> order = Comparator.<MetadataStore.FileInfo>comparingLong(this::sortValue)
+				.thenComparing(MetadataStore.FileInfo::getFileName);
+		return descending ? order.reversed() : order;
+	}
+
+	// Position of a file relative to the cursor in listing order: positive means it belongs on this page or later
+	public int compareToCursor(MetadataStore.FileInfo file) {
+		if (afterName == null) {
+			return 1;
+		}
+		int result = Long.compare(sortValue(file), afterValue);
+		if (result == 0) {
+			result = file.getFileName().compareTo(afterName);
+		}
+		return descending ? -result : result;
+	}
+
+	public Sort getSort() {
+		return sort;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public boolean hasCursor() {
+		return afterName != null;
+	}
+
+	public long getAfterValue() {
+		return afterValue;
+	}
+
+	public String getAfterName() {
+		return afterName;
+	}
+
+	// Zero means no limit
+	public int getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,169 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Parses application/x-www-form-urlencoded data (query strings and form bodies) in one pass.
+// Keys and values without escapes are plain substrings of the input; only segments that
+// contain '%' or '+' go through the decoder. Empty values and keys without '=' are kept,
+// malformed escapes are kept literally, and parameters past the limit are ignored.
+public final class FormParser {
+
+	public static final int DEFAULT_MAX_PARAMETERS = 256;
+	public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+	private static final LongAdder truncatedCount = new LongAdder();
+
+	private FormParser() {
+	}
+
+	// Last value wins for repeated keys, as the old split-based parser did
+	public static Map<String, String> parse(String data, int maxParameters) {
+		Map<String, String> result = new HashMap<>();
+		parse(data, maxParameters, result::put);
+		return result;
+	}
+
+	public static Map<String, List<String>> parseAll(String data, int maxParameters) {
+		Map<String, List<String>> result = new LinkedHashMap<>();
+		parse(data, maxParameters, (key, value) -> result.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value));
+		return result;
+	}
+
+	// Returns the number of parameters handed to the sink
+	public static int parse(String data, int maxParameters, BiConsumer<String, String> sink) {
+		if (data == null) {
+			return 0;
+		}
+		int length = data.length();
+		int count = 0;
+		int start = 0;
+		while (start <= length) {
+			int keyEnd = -1;
+			boolean keyEncoded = false;
+			boolean valueEncoded = false;
+			int end = start;
+			for (; end < length; end++) {
+				char c = data.charAt(end);
+				if (c == '&') {
+					break;
+				}
+				if (c == '=' && keyEnd < 0) {
+					keyEnd = end;
+				} else if (c == '%' || c == '+' || c == '\r' || c == '\n') {
+					if (keyEnd < 0) {
+						keyEncoded = true;
+					} else {
+						valueEncoded = true;
+					}
+				}
+			}
+
+			int nameEnd = keyEnd < 0 ? end : keyEnd;
+			if (nameEnd > start) {
+				if (count == maxParameters) {
+					truncatedCount.increment();
+					return count;
+				}
+				String key = keyEncoded ? decode(data, start, nameEnd) : data.substring(start, nameEnd);
+				String value = keyEnd < 0 ? ""
+						: valueEncoded ? decode(data, keyEnd + 1, end) : data.substring(keyEnd + 1, end);
+				sink.accept(key, value);
+				count++;
+			}
+			start = end + 1;
+		}
+		return count;
+	}
+
+	// Reads at most maxBytes of a form body. The rest of an oversized body is left unread and the
+	// parameter it cuts through is dropped, so a truncated value is never mistaken for a complete one
+	public static String readBody(InputStream is, int maxBytes) throws IOException {
+		byte[] buffer = new byte[Math.min(maxBytes, 8192) + 1];
+		int length = 0;
+		int read;
+		while ((read = is.read(buffer, length, buffer.length - length)) != -1) {
+			length += read;
+			if (length == buffer.length) {
+				if (length > maxBytes) {
+					break;
+				}
+				byte[] larger = new byte[Math.min(buffer.length * 2, maxBytes + 1)];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+		}
+		if (length > maxBytes) {
+			truncatedCount.increment();
+			length = maxBytes;
+			while (length > 0 && buffer[length - 1] != '&') {
+				length--;
+			}
+		}
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	public static long getTruncatedCount() {
+		return truncatedCount.sum();
+	}
+
+	// Decodes %XX runs as UTF-8 and '+' as a space; CR and LF are dropped, as the line-based reader did
+	static String decode(String data, int from, int to) {
+		StringBuilder out = new StringBuilder(to - from);
+		byte[] bytes = null;
+		int i = from;
+		while (i < to) {
+			char c = data.charAt(i);
+			if (c == '%' && hexValue(data, i + 1, to) >= 0) {
+				if (bytes == null) {
+					bytes = new byte[(to - i) / 3];
+				}
+				int n = 0;
+				int value;
+				while (i < to && data.charAt(i) == '%' && (value = hexValue(data, i + 1, to)) >= 0) {
+					bytes[n++] = (byte) value;
+					i += 3;
+				}
+				out.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+			} else {
+				if (c == '+') {
+					out.append(' ');
+				} else if (c != '\r' && c != '\n') {
+					out.append(c);
+				}
+				i++;
+			}
+		}
+		return out.toString();
+	}
+
+	private static int hexValue(String data, int index, int to) {
+		if (index + 1 >= to) {
+			return -1;
+		}
+		int high = hexDigit(data.charAt(index));
+		int low = hexDigit(data.charAt(index + 1));
+		return high < 0 || low < 0 ? -1 : (high << 4) | low;
+	}
+
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
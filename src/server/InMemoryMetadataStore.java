@@ -0,0 +1,503 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+// Keeps users and file records in concurrent maps so reads never leave the process.
+// Every change is appended to a journal before it becomes visible; on startup the last
+// snapshot is loaded and the journal replayed, and the journal is folded into a new
+// snapshot once it grows past compactAfter records. Records are idempotent, so replaying
+// a journal over a snapshot that already contains it is harmless.
+//
+// Journal lines are tab-separated fields followed by a CRC32 of the line:
+//   U  userId userName email password
+//   F  userId project time fileName fileSize [fileName fileSize ...]
+//   D  userId project fileName [fileName ...]
+//   P  userId project
+public class InMemoryMetadataStore implements MetadataStore {
+
+	private static final String SNAPSHOT_FILE = "metadata.snapshot";
+	private static final String JOURNAL_FILE = "metadata.journal";
+
+	private static class User {
+		final int id;
+		final String name;
+		final String email;
+		final String password;
+
+		User(int id, String name, String email, String password) {
+			this.id = id;
+			this.name = name;
+			this.email = email;
+			this.password = password;
+		}
+	}
+
+	private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+	private final Map<String, User> usersByEmail = new ConcurrentHashMap<>();
+	private final Map<Integer, Map<String, NavigableMap<String, FileInfo>>> projects = new ConcurrentHashMap<>();
+
+	private final File snapshotFile;
+	private final File journalFile;
+	private final boolean fsync;
+	private final int compactAfter;
+
+	// Serializes writers so the journal order always matches the order changes became visible
+	private final Object writeLock = new Object();
+	private FileChannel journal;
+	private int journalRecords;
+	private int nextUserId = 1;
+
+	public InMemoryMetadataStore(File directory, boolean fsync, int compactAfter) {
+		this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+		this.journalFile = new File(directory, JOURNAL_FILE);
+		this.fsync = fsync;
+		this.compactAfter = Math.max(1, compactAfter);
+		try {
+			Files.createDirectories(directory.toPath());
+			if (snapshotFile.isFile()) {
+				load(snapshotFile);
+			}
+			int replayed = journalFile.isFile() ? load(journalFile) : 0;
+			synchronized (writeLock) {
+				journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+				if (replayed > 0) {
+					compact();
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open metadata store in " + directory, e);
+		}
+		RequestHandlers.logger.info("Metadata store loaded: " + usersByName.size() + " users");
+	}
+
+	@Override
+	public boolean createUser(String username, String email, String password) throws SQLException {
+		synchronized (writeLock) {
+			if (usersByEmail.containsKey(email)) {
+				return false;
+			}
+			int userId = nextUserId;
+			commit(() -> applyUser(userId, username, email, password), "U", String.valueOf(userId), username, email,
+					password);
+			return true;
+		}
+	}
+
+	@Override
+	public boolean validateUser(String email, String password) {
+		User user = usersByEmail.get(email);
+		return user != null && user.password.equals(password);
+	}
+
+	@Override
+	public String findUserNameByEmail(String email) {
+		User user = usersByEmail.get(email);
+		return user != null ? user.name : null;
+	}
+
+	@Override
+	public Integer findUserId(String username) {
+		User user = usersByName.get(username);
+		return user != null ? user.id : null;
+	}
+
+	@Override
+	public boolean listFiles(String username, String projectName, FileQuery query, FileVisitor visitor)
+			throws IOException {
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return false;
+		}
+		NavigableMap<String, FileInfo> files = filesOf(userId, projectName);
+		if (files == null) {
+			return true;
+		}
+		int limit = query.getLimit() > 0 ? query.getLimit() : Integer.MAX_VALUE;
+		if (query.getSort() == FileQuery.Sort.NAME) {
+			// Files are kept in name order, so a page is a range scan
+			NavigableMap<String, FileInfo> range = query.isDescending() ? files.descendingMap() : files;
+			if (query.hasCursor()) {
+				range = range.tailMap(query.getAfterName(), false);
+			}
+			for (FileInfo file : range.values()) {
+				if (limit-- == 0) {
+					break;
+				}
+				visitor.visit(file);
+			}
+			return true;
+		}
+		List<FileInfo> page = new ArrayList<>();
+		for (FileInfo file : files.values()) {
+			if (query.compareToCursor(file) > 0) {
+				page.add(file);
+			}
+		}
+		page.sort(query.comparator());
+		for (FileInfo file : page) {
+			if (limit-- == 0) {
+				break;
+			}
+			visitor.visit(file);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean saveFile(String username, String projectName, String fileName, long fileSize)
+			throws SQLException {
+		return saveFiles(username, projectName, List.of(new FileRecord(fileName, fileSize)));
+	}
+
+	@Override
+	public boolean saveFiles(String username, String projectName, List<? extends FileRecord> files)
+			throws SQLException {
+		if (files.isEmpty()) {
+			return true;
+		}
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return false;
+		}
+		String[] fields = new String[4 + files.size() * 2];
+		String[] fileNames = new String[files.size()];
+		long[] fileSizes = new long[files.size()];
+		long now = System.currentTimeMillis();
+		fields[0] = "F";
+		fields[1] = String.valueOf(userId);
+		fields[2] = projectName;
+		fields[3] = String.valueOf(now);
+		for (int i = 0; i < files.size(); i++) {
+			fileNames[i] = files.get(i).getFileName();
+			fileSizes[i] = files.get(i).getFileSize();
+			fields[4 + i * 2] = fileNames[i];
+			fields[5 + i * 2] = String.valueOf(fileSizes[i]);
+		}
+		synchronized (writeLock) {
+			// One journal line for the whole batch, so a crash keeps either all of it or none
+			commit(() -> applySave(userId, projectName, now, fileNames, fileSizes), fields);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean deleteFile(String username, String projectName, String fileName) throws SQLException {
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return false;
+		}
+		synchronized (writeLock) {
+			NavigableMap<String, FileInfo> files = filesOf(userId, projectName);
+			if (files == null || !files.containsKey(fileName)) {
+				return false;
+			}
+			commit(() -> applyDelete(userId, projectName, new String[] { fileName }), "D", String.valueOf(userId),
+					projectName, fileName);
+			return true;
+		}
+	}
+
+	@Override
+	public int deleteProject(String username, String projectName) throws SQLException {
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return 0;
+		}
+		synchronized (writeLock) {
+			NavigableMap<String, FileInfo> files = filesOf(userId, projectName);
+			if (files == null || files.isEmpty()) {
+				return 0;
+			}
+			int deleted = files.size();
+			commit(() -> applyDeleteProject(userId, projectName), "P", String.valueOf(userId), projectName);
+			return deleted;
+		}
+	}
+
+	@Override
+	public Boolean fileExists(String username, String projectName, String fileName) {
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return null;
+		}
+		NavigableMap<String, FileInfo> files = filesOf(userId, projectName);
+		return files != null && files.containsKey(fileName);
+	}
+
+	@Override
+	public void close() {
+		synchronized (writeLock) {
+			try {
+				if (journal != null && journal.isOpen()) {
+					journal.force(false);
+					journal.close();
+				}
+			} catch (IOException e) {
+				RequestHandlers.logger.warning("Could not close metadata journal: " + e.getMessage());
+			}
+		}
+	}
+
+	public int getUserCount() {
+		return usersByName.size();
+	}
+
+	public int getJournalRecords() {
+		synchronized (writeLock) {
+			return journalRecords;
+		}
+	}
+
+	private NavigableMap<String, FileInfo> filesOf(int userId, String projectName) {
+		Map<String, NavigableMap<String, FileInfo>> userProjects = projects.get(userId);
+		return userProjects != null ? userProjects.get(projectName) : null;
+	}
+
+	// The apply methods run under writeLock, or during startup before the store is shared
+
+	private void applyUser(int userId, String username, String email, String password) {
+		User user = new User(userId, username, email, password);
+		usersByEmail.put(email, user);
+		// UserName is not unique in the schema; like the SQL lookup, the first account wins
+		usersByName.putIfAbsent(username, user);
+		nextUserId = Math.max(nextUserId, userId + 1);
+	}
+
+	private void applySave(int userId, String projectName, long time, String[] fileNames, long[] fileSizes) {
+		Map<String, FileInfo> files = projects.computeIfAbsent(userId, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(projectName, key -> new ConcurrentSkipListMap<>());
+		Timestamp timeUpload = new Timestamp(time);
+		for (int i = 0; i < fileNames.length; i++) {
+			files.put(fileNames[i], new FileInfo(fileNames[i], fileSizes[i], timeUpload));
+		}
+	}
+
+	private void applyDelete(int userId, String projectName, String[] fileNames) {
+		NavigableMap<String, FileInfo> files = filesOf(userId, projectName);
+		if (files == null) {
+			return;
+		}
+		for (String fileName : fileNames) {
+			files.remove(fileName);
+		}
+		if (files.isEmpty()) {
+			applyDeleteProject(userId, projectName);
+		}
+	}
+
+	private void applyDeleteProject(int userId, String projectName) {
+		Map<String, NavigableMap<String, FileInfo>> userProjects = projects.get(userId);
+		if (userProjects != null) {
+			userProjects.remove(projectName);
+		}
+	}
+
+	// Journals a change and then makes it visible; a change that cannot be journaled is not applied
+	private void commit(Runnable apply, String... fields) throws SQLException {
+		try {
+			ByteBuffer line = ByteBuffer.wrap(encode(fields).getBytes(StandardCharsets.UTF_8));
+			while (line.hasRemaining()) {
+				journal.write(line);
+			}
+			if (fsync) {
+				journal.force(false);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Could not write metadata journal", e);
+		}
+		apply.run();
+		if (++journalRecords >= compactAfter) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// The journal still holds everything; compaction is retried on the next write
+				RequestHandlers.logger.warning("Could not compact metadata journal: " + e.getMessage());
+			}
+		}
+	}
+
+	// Writes the current state to a new snapshot, then starts an empty journal
+	private void compact() throws IOException {
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8), 64 * 1024)) {
+			for (User user : usersByEmail.values()) {
+				writer.write(encode("U", String.valueOf(user.id), user.name, user.email, user.password));
+			}
+			for (Map.Entry<Integer, Map<String, NavigableMap<String, FileInfo>>> user : projects.entrySet()) {
+				for (Map.Entry<String, NavigableMap<String, FileInfo>> project : user.getValue().entrySet()) {
+					for (FileInfo file : project.getValue().values()) {
+						writer.write(encode("F", String.valueOf(user.getKey()), project.getKey(),
+								String.valueOf(file.getTimeUpload().getTime()), file.getFileName(),
+								String.valueOf(file.getFileSize())));
+					}
+				}
+			}
+		}
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		journal.truncate(0);
+		journal.force(true);
+		journalRecords = 0;
+	}
+
+	// Replays a snapshot or journal; stops at the first damaged line, which can only be a torn final write
+	private int load(File file) throws IOException {
+		int records = 0;
+		long validBytes = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = decode(line);
+				if (fields == null || !replay(fields)) {
+					RequestHandlers.logger.warning("Ignoring damaged metadata record in " + file + " after "
+							+ records + " records");
+					break;
+				}
+				records++;
+				validBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+			}
+		}
+		if (file.equals(journalFile) && validBytes < file.length()) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(validBytes);
+			}
+		}
+		return records;
+	}
+
+	private boolean replay(String[] fields) {
+		try {
+			switch (fields[0]) {
+			case "U":
+				applyUser(Integer.parseInt(fields[1]), fields[2], fields[3], fields[4]);
+				return true;
+			case "F": {
+				int count = (fields.length - 4) / 2;
+				if (count < 1 || fields.length != 4 + count * 2) {
+					return false;
+				}
+				String[] fileNames = new String[count];
+				long[] fileSizes = new long[count];
+				for (int i = 0; i < count; i++) {
+					fileNames[i] = fields[4 + i * 2];
+					fileSizes[i] = Long.parseLong(fields[5 + i * 2]);
+				}
+				applySave(Integer.parseInt(fields[1]), fields[2], Long.parseLong(fields[3]), fileNames, fileSizes);
+				return true;
+			}
+			case "D": {
+				String[] fileNames = new String[fields.length - 3];
+				System.arraycopy(fields, 3, fileNames, 0, fileNames.length);
+				applyDelete(Integer.parseInt(fields[1]), fields[2], fileNames);
+				return true;
+			}
+			case "P":
+				applyDeleteProject(Integer.parseInt(fields[1]), fields[2]);
+				return true;
+			default:
+				return false;
+			}
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private static String encode(String... fields) {
+		StringBuilder line = new StringBuilder(64);
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				line.append('\t');
+			}
+			escape(line, fields[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(line.toString().getBytes(StandardCharsets.UTF_8));
+		return line.append('\t').append(Long.toHexString(crc.getValue())).append('\n').toString();
+	}
+
+	private static String[] decode(String line) {
+		int lastTab = line.lastIndexOf('\t');
+		if (lastTab <= 0) {
+			return null;
+		}
+		String body = line.substring(0, lastTab);
+		CRC32 crc = new CRC32();
+		crc.update(body.getBytes(StandardCharsets.UTF_8));
+		if (!Long.toHexString(crc.getValue()).equals(line.substring(lastTab + 1))) {
+			return null;
+		}
+		String[] fields = body.split("\t", -1);
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = unescape(fields[i]);
+		}
+		return fields;
+	}
+
+	private static void escape(StringBuilder out, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			default:
+				out.append(c);
+			}
+		}
+	}
+
+	private static String unescape(String value) {
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		StringBuilder out = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+}
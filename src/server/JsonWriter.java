@@ -0,0 +1,141 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Writes JSON straight to a Writer, so large responses never exist as a single String.
+// Commas are inserted automatically; callers only describe the structure.
+public class JsonWriter implements Closeable {
+
+	private final Writer out;
+	private boolean[] hasElements = new boolean[8];
+	private int depth;
+	private boolean afterName;
+
+	public JsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	public JsonWriter beginObject() throws IOException {
+		return open('{');
+	}
+
+	public JsonWriter endObject() throws IOException {
+		return close('}');
+	}
+
+	public JsonWriter beginArray() throws IOException {
+		return open('[');
+	}
+
+	public JsonWriter endArray() throws IOException {
+		return close(']');
+	}
+
+	public JsonWriter name(String name) throws IOException {
+		separate();
+		writeString(out, name);
+		out.write(':');
+		afterName = true;
+		return this;
+	}
+
+	public JsonWriter value(String value) throws IOException {
+		separate();
+		if (value == null) {
+			out.write("null");
+		} else {
+			writeString(out, value);
+		}
+		return this;
+	}
+
+	public JsonWriter value(long value) throws IOException {
+		separate();
+		out.write(Long.toString(value));
+		return this;
+	}
+
+	public JsonWriter value(boolean value) throws IOException {
+		separate();
+		out.write(value ? "true" : "false");
+		return this;
+	}
+
+	public JsonWriter nullValue() throws IOException {
+		separate();
+		out.write("null");
+		return this;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private JsonWriter open(char bracket) throws IOException {
+		separate();
+		out.write(bracket);
+		if (++depth == hasElements.length) {
+			hasElements = Arrays.copyOf(hasElements, depth * 2);
+		}
+		hasElements[depth] = false;
+		return this;
+	}
+
+	private JsonWriter close(char bracket) throws IOException {
+		depth--;
+		out.write(bracket);
+		return this;
+	}
+
+	private void separate() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (depth > 0) {
+			if (hasElements[depth]) {
+				out.write(',');
+			}
+			hasElements[depth] = true;
+		}
+	}
+
+	public static void writeString(Writer out, String value) throws IOException {
+		out.write('"');
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String escape;
+			if (c == '"') {
+				escape = "\\\"";
+			} else if (c == '\\') {
+				escape = "\\\\";
+			} else if (c == '\n') {
+				escape = "\\n";
+			} else if (c == '\r') {
+				escape = "\\r";
+			} else if (c == '\t') {
+				escape = "\\t";
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				escape = String.format("\\u%04x", (int) c);
+			} else {
+				continue;
+			}
+			// Unescaped runs are copied in one call
+			out.write(value, start, i - start);
+			out.write(escape);
+			start = i + 1;
+		}
+		out.write(value, start, length - start);
+		out.write('"');
+	}
+}
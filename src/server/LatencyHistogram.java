@@ -0,0 +1,88 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram over microseconds: 16 sub-buckets per power of two keeps the
+// relative error of a percentile under 7% while recording stays a single array increment
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumMicros = new LongAdder();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		recordMicros(Math.max(0, nanos / 1000));
+	}
+
+	public void recordMicros(long micros) {
+		buckets.incrementAndGet(indexOf(micros));
+		count.increment();
+		sumMicros.add(micros);
+		if (micros > maxMicros.get()) {
+			maxMicros.accumulateAndGet(micros, Math::max);
+		}
+	}
+
+	static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		if (msb > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int sub = (int) ((micros >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		int shift = msb - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + sub + 1)) << shift;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumMicros.sum() / 1_000_000.0;
+	}
+
+	public double getMaxSeconds() {
+		return maxMicros.get() / 1_000_000.0;
+	}
+
+	public double percentileSeconds(double quantile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), Math.max(maxMicros.get(), 1)) / 1_000_000.0;
+			}
+		}
+		return getMaxSeconds();
+	}
+}
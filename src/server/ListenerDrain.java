@@ -0,0 +1,72 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+// A listener on its way out: it stops accepting at once and gets until the deadline to finish the
+// exchanges it has already started. Progress is read from the listener's own executor, so a listener
+// being drained after a restart is not confused with its replacement.
+public class ListenerDrain {
+
+	// No new exchange for this long means the ones still arriving on open connections have stopped too
+	private static final long QUIET_MILLIS = 300;
+	private static final long POLL_MILLIS = 100;
+
+	private final HttpServer listener;
+	private final ServerExecutor executor;
+	private final long deadline;
+	private final Thread stopper;
+	// The NIO engine's stop returns by itself once its connections are done
+	private final boolean stopsWhenIdle;
+
+	public ListenerDrain(HttpServer listener, ServerExecutor executor, long timeoutMillis) {
+		this.listener = listener;
+		this.executor = executor;
+		this.deadline = System.currentTimeMillis() + timeoutMillis;
+		this.stopsWhenIdle = listener instanceof NioHttpServer;
+		// HttpServer.stop closes the listening socket before it waits. The JDK server waits out the whole
+		// delay even when nothing is running, so await() ends that wait with a second stop(0)
+		int delaySeconds = (int) Math.max(1, (timeoutMillis + 999) / 1000);
+		this.stopper = new Thread(() -> listener.stop(delaySeconds), "listener-stop");
+		stopper.setDaemon(true);
+		stopper.start();
+	}
+
+	public int getRemaining() {
+		return executor.getActiveCount() + executor.getQueueDepth();
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	// Blocks until the listener is closed; exchanges still running at the deadline are cut off
+	public void await() {
+		long quietSince = -1;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now >= deadline || !stopper.isAlive()) {
+				break;
+			}
+			if (stopsWhenIdle || getRemaining() > 0) {
+				quietSince = -1;
+			} else if (quietSince < 0) {
+				quietSince = now;
+			} else if (now - quietSince >= QUIET_MILLIS) {
+				break;
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		listener.stop(0);
+		try {
+			stopper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,83 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+// Users and file records. MySqlMetadataStore keeps them in the web_server database,
+// InMemoryMetadataStore keeps them in this process; metadata.store picks one at startup
+public interface MetadataStore {
+
+	class FileRecord {
+		private final String fileName;
+		private final long fileSize;
+
+		public FileRecord(String fileName, long fileSize) {
+			this.fileName = fileName;
+			this.fileSize = fileSize;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getFileSize() {
+			return fileSize;
+		}
+	}
+
+	class FileInfo extends FileRecord {
+		private final Timestamp timeUpload;
+
+		public FileInfo(String fileName, long fileSize, Timestamp timeUpload) {
+			super(fileName, fileSize);
+			this.timeUpload = timeUpload;
+		}
+
+		public Timestamp getTimeUpload() {
+			return timeUpload;
+		}
+	}
+
+	interface FileVisitor {
+		void visit(FileInfo file) throws IOException;
+	}
+
+	static MetadataStore create(ServerConfig config, UserIdCache userIdCache) {
+		if ("memory".equalsIgnoreCase(config.getString("metadata.store", "mysql"))) {
+			return new InMemoryMetadataStore(new File(config.getString("metadata.dir", "data")),
+					config.getBoolean("metadata.fsync", false), config.getInt("metadata.compactAfter", 100_000));
+		}
+		return new MySqlMetadataStore(userIdCache);
+	}
+
+	// Returns false when the email is already registered
+	boolean createUser(String username, String email, String password) throws SQLException;
+
+	boolean validateUser(String email, String password) throws SQLException;
+
+	String findUserNameByEmail(String email) throws SQLException;
+
+	Integer findUserId(String username) throws SQLException;
+
+	// Hands the files of one page to the visitor in listing order; false when the user does not exist
+	boolean listFiles(String username, String projectName, FileQuery query, FileVisitor visitor)
+			throws SQLException, IOException;
+
+	boolean saveFile(String username, String projectName, String fileName, long fileSize) throws SQLException;
+
+	// All records are written or none are
+	boolean saveFiles(String username, String projectName, List<? extends FileRecord> files) throws SQLException;
+
+	boolean deleteFile(String username, String projectName, String fileName) throws SQLException;
+
+	// Number of file records removed, 0 when the project had none
+	int deleteProject(String username, String projectName) throws SQLException;
+
+	// Null when the user does not exist
+	Boolean fileExists(String username, String projectName, String fileName) throws SQLException;
+
+	void close();
+}
@@ -0,0 +1,405 @@
+package server;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// File records are written with a single upsert when the file table has a unique key over the file
+// identity, and with the older lookup then UPDATE or INSERT when it does not (see supportsUpsert)
+public class MySqlMetadataStore implements MetadataStore {
+
+	static final String SQL_ADD_FILE_KEY = "ALTER TABLE file ADD UNIQUE KEY uq_file_owner (UserID, ProjectName, FileName)";
+	// A row alias instead of VALUES(), which MySQL 8.0.20 deprecates in ON DUPLICATE KEY UPDATE
+	private static final String SQL_UPSERT = "INSERT INTO file (FileName, FileSize, TimeUpload, ProjectName, UserID) "
+			+ "VALUES (?, ?, NOW(), ?, ?) AS new ON DUPLICATE KEY UPDATE FileSize = new.FileSize, TimeUpload = NOW()";
+	// UserName is not unique (register only checks the email), so the lookup settles on one account
+	private static final String SQL_FIND_USER_ID = "SELECT UserID FROM user WHERE UserName = ? ORDER BY UserID LIMIT 1";
+	private static final String SQL_FIND_FILE = "SELECT FileID FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
+	private static final String SQL_UPDATE_FILE = "UPDATE file SET FileSize = ?, TimeUpload = NOW() WHERE FileID = ?";
+	private static final String SQL_INSERT_FILE = "INSERT INTO file (FileName, FileSize, TimeUpload, ProjectName, UserID) "
+			+ "VALUES (?, ?, NOW(), ?, ?)";
+	private static final String SQL_DELETE_FILE = "DELETE FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
+	private static final String SQL_DELETE_PROJECT = "DELETE FROM file WHERE ProjectName = ? AND UserID = ?";
+	private static final String SQL_FILE_EXISTS = "SELECT 1 FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
+	private static final String SQL_LIST_FILES = "SELECT FileName, FileSize, TimeUpload FROM file WHERE UserID = ? AND ProjectName = ?";
+
+	// More than the largest page the handler asks for, so a page is one query
+	private static final int LIST_BATCH_ROWS = 2000;
+
+	private final UserIdCache userIdCache;
+	private volatile Boolean upsertSupported;
+
+	public MySqlMetadataStore(UserIdCache userIdCache) {
+		this.userIdCache = userIdCache;
+	}
+
+	@Override
+	public boolean createUser(String username, String email, String password) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection();
+				PreparedStatement checkStmt = conn.prepareStatement("SELECT * FROM user WHERE UserEmail = ?");
+				PreparedStatement insertStmt = conn.prepareStatement(
+						"INSERT INTO user (UserName, UserEmail, UserPass) VALUES (?, ?, ?)",
+						Statement.RETURN_GENERATED_KEYS)) {
+
+			checkStmt.setString(1, email);
+			try (ResultSet rs = checkStmt.executeQuery()) {
+				if (rs.next()) {
+					return false;
+				}
+			}
+
+			insertStmt.setString(1, username);
+			insertStmt.setString(2, email);
+			insertStmt.setString(3, password);
+			insertStmt.executeUpdate();
+			try (ResultSet keys = insertStmt.getGeneratedKeys()) {
+				if (keys.next()) {
+					userIdCache.put(username, keys.getInt(1));
+				}
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public boolean validateUser(String email, String password) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection();
+				PreparedStatement stmt = conn
+						.prepareStatement("SELECT UserID, UserName FROM user WHERE UserEmail = ? AND UserPass = ?")) {
+			stmt.setString(1, email);
+			stmt.setString(2, password);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next()) {
+					userIdCache.put(rs.getString("UserName"), rs.getInt("UserID"));
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public String findUserNameByEmail(String email) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection();
+				PreparedStatement stmt = conn.prepareStatement("SELECT UserName FROM user WHERE UserEmail = ?")) {
+			stmt.setString(1, email);
+			try (ResultSet rs = stmt.executeQuery()) {
+				return rs.next() ? rs.getString("UserName") : null;
+			}
+		}
+	}
+
+	@Override
+	public Integer findUserId(String username) throws SQLException {
+		Integer cached = userIdCache.get(username);
+		if (cached != null) {
+			return cached;
+		}
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			return findUserId(conn, username);
+		}
+	}
+
+	// Rows are read in batches and the connection goes back to the pool before the visitor writes them,
+	// so a slow client never holds a database connection. An unpaged listing walks the project batch by
+	// batch with the same keyset cursor a client would use.
+	@Override
+	public boolean listFiles(String username, String projectName, FileQuery query, FileVisitor visitor)
+			throws SQLException, IOException {
+		Integer userId = findUserId(username);
+		if (userId == null) {
+			return false;
+		}
+		int remaining = query.getLimit() > 0 ? query.getLimit() : Integer.MAX_VALUE;
+		FileQuery batchQuery = query;
+		while (remaining > 0) {
+			int batchSize = Math.min(remaining, LIST_BATCH_ROWS);
+			List<FileInfo> batch = listBatch(userId, projectName, batchQuery.withLimit(batchSize));
+			for (FileInfo file : batch) {
+				visitor.visit(file);
+			}
+			if (batch.size() < batchSize) {
+				break;
+			}
+			remaining -= batch.size();
+			batchQuery = batchQuery.after(batch.get(batch.size() - 1));
+		}
+		return true;
+	}
+
+	private List<FileInfo> listBatch(int userId, String projectName, FileQuery query) throws SQLException {
+		List<FileInfo> files = new ArrayList<>(Math.min(query.getLimit(), 256));
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			try (PreparedStatement stmt = conn.prepareStatement(listSql(query), ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY)) {
+				int index = 1;
+				stmt.setInt(index++, userId);
+				stmt.setString(index++, projectName);
+				if (query.hasCursor()) {
+					if (query.getSort() == FileQuery.Sort.NAME) {
+						stmt.setString(index++, query.getAfterName());
+					} else {
+						setSortValue(stmt, index++, query);
+						setSortValue(stmt, index++, query);
+						stmt.setString(index++, query.getAfterName());
+					}
+				}
+				stmt.setInt(index, query.getLimit());
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						files.add(new FileInfo(rs.getString("FileName"), rs.getLong("FileSize"),
+								rs.getTimestamp("TimeUpload")));
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	// Keyset pagination: the page starts strictly after the cursor row, so deep pages do not scan the earlier ones.
+	// Name order is served by uq_file_owner; time and size order want
+	// ALTER TABLE file ADD KEY ix_file_time (UserID, ProjectName, TimeUpload, FileName),
+	//     ADD KEY ix_file_size (UserID, ProjectName, FileSize, FileName);
+	private static String listSql(FileQuery query) {
+		String column = query.getSort() == FileQuery.Sort.TIME ? "TimeUpload"
+				: query.getSort() == FileQuery.Sort.SIZE ? "FileSize" : null;
+		String after = query.isDescending() ? " < " : " > ";
+		String direction = query.isDescending() ? " DESC" : "";
+		StringBuilder sql = new StringBuilder(SQL_LIST_FILES);
+		if (query.hasCursor()) {
+			if (column == null) {
+				sql.append(" AND FileName").append(after).append('?');
+			} else {
+				sql.append(" AND (").append(column).append(after).append("? OR (").append(column)
+						.append(" = ? AND FileName").append(after).append("?))");
+			}
+		}
+		sql.append(" ORDER BY ");
+		if (column != null) {
+			sql.append(column).append(direction).append(", ");
+		}
+		sql.append("FileName").append(direction).append(" LIMIT ?");
+		return sql.toString();
+	}
+
+	private static void setSortValue(PreparedStatement stmt, int index, FileQuery query) throws SQLException {
+		if (query.getSort() == FileQuery.Sort.TIME) {
+			stmt.setTimestamp(index, new Timestamp(query.getAfterValue()));
+		} else {
+			stmt.setLong(index, query.getAfterValue());
+		}
+	}
+
+	@Override
+	public void close() {
+		DatabaseConnection.shutdown();
+	}
+
+	// Resolves a UserID through the shared cache, querying the database only on a miss
+	private Integer findUserId(Connection conn, String username) throws SQLException {
+		Integer cached = userIdCache.get(username);
+		if (cached != null) {
+			return cached;
+		}
+		try (PreparedStatement stmt = conn.prepareStatement(SQL_FIND_USER_ID)) {
+			stmt.setString(1, username);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next()) {
+					int userId = rs.getInt("UserID");
+					userIdCache.put(username, userId);
+					return userId;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean saveFile(String username, String projectName, String fileName, long fileSize)
+			throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			Integer userId = findUserId(conn, username);
+			if (userId == null) {
+				return false;
+			}
+			if (supportsUpsert(conn)) {
+				// One statement, atomic against a concurrent upload of the same file
+				try (PreparedStatement stmt = conn.prepareStatement(SQL_UPSERT)) {
+					bindUpsert(stmt, fileName, fileSize, projectName, userId);
+					stmt.executeUpdate();
+					return true;
+				}
+			}
+			conn.setAutoCommit(false);
+			try {
+				writeWithoutKey(conn, userId, projectName, fileName, fileSize);
+				conn.commit();
+				return true;
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public boolean saveFiles(String username, String projectName, List<? extends FileRecord> files) throws SQLException {
+		if (files.isEmpty()) {
+			return true;
+		}
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			Integer userId = findUserId(conn, username);
+			if (userId == null) {
+				return false;
+			}
+			boolean upsert = supportsUpsert(conn);
+			conn.setAutoCommit(false);
+			try {
+				if (upsert) {
+					try (PreparedStatement stmt = conn.prepareStatement(SQL_UPSERT)) {
+						for (FileRecord file : files) {
+							bindUpsert(stmt, file.getFileName(), file.getFileSize(), projectName, userId);
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+					}
+				} else {
+					for (FileRecord file : files) {
+						writeWithoutKey(conn, userId, projectName, file.getFileName(), file.getFileSize());
+					}
+				}
+				conn.commit();
+				return true;
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+		}
+	}
+
+	// Looked up once: on a file table without uq_file_owner the upsert would insert a duplicate row
+	// on every re-upload instead of updating the existing one
+	private boolean supportsUpsert(Connection conn) throws SQLException {
+		Boolean supported = upsertSupported;
+		if (supported == null) {
+			supported = hasFileIdentityKey(conn);
+			upsertSupported = supported;
+			if (!supported) {
+				RequestHandlers.logger.warning("The file table has no unique key on (UserID, ProjectName, FileName), "
+						+ "so file records are written with a lookup and an UPDATE or INSERT. Add it with: "
+						+ SQL_ADD_FILE_KEY);
+			}
+		}
+		return supported;
+	}
+
+	private static boolean hasFileIdentityKey(Connection conn) throws SQLException {
+		Map<String, Set<String>> uniqueIndexes = new HashMap<>();
+		try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, "file", true, false)) {
+			while (rs.next()) {
+				String index = rs.getString("INDEX_NAME");
+				String column = rs.getString("COLUMN_NAME");
+				if (index != null && column != null) {
+					uniqueIndexes.computeIfAbsent(index, key -> new HashSet<>()).add(column.toLowerCase(Locale.ROOT));
+				}
+			}
+		}
+		return uniqueIndexes.containsValue(Set.of("userid", "projectname", "filename"));
+	}
+
+	// The baseline's two statements; two concurrent uploads of a new file can still both insert
+	private static void writeWithoutKey(Connection conn, int userId, String projectName, String fileName,
+			long fileSize) throws SQLException {
+		Integer fileId = null;
+		try (PreparedStatement stmt = conn.prepareStatement(SQL_FIND_FILE)) {
+			stmt.setString(1, fileName);
+			stmt.setString(2, projectName);
+			stmt.setInt(3, userId);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next()) {
+					fileId = rs.getInt("FileID");
+				}
+			}
+		}
+		if (fileId != null) {
+			try (PreparedStatement stmt = conn.prepareStatement(SQL_UPDATE_FILE)) {
+				stmt.setLong(1, fileSize);
+				stmt.setInt(2, fileId);
+				stmt.executeUpdate();
+			}
+		} else {
+			try (PreparedStatement stmt = conn.prepareStatement(SQL_INSERT_FILE)) {
+				bindUpsert(stmt, fileName, fileSize, projectName, userId);
+				stmt.executeUpdate();
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteFile(String username, String projectName, String fileName) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			Integer userId = findUserId(conn, username);
+			if (userId == null) {
+				return false;
+			}
+			try (PreparedStatement stmt = conn.prepareStatement(SQL_DELETE_FILE)) {
+				stmt.setString(1, fileName);
+				stmt.setString(2, projectName);
+				stmt.setInt(3, userId);
+				return stmt.executeUpdate() > 0;
+			}
+		}
+	}
+
+	@Override
+	public int deleteProject(String username, String projectName) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			Integer userId = findUserId(conn, username);
+			if (userId == null) {
+				return 0;
+			}
+			try (PreparedStatement stmt = conn.prepareStatement(SQL_DELETE_PROJECT)) {
+				stmt.setString(1, projectName);
+				stmt.setInt(2, userId);
+				return stmt.executeUpdate();
+			}
+		}
+	}
+
+	@Override
+	public Boolean fileExists(String username, String projectName, String fileName) throws SQLException {
+		try (Connection conn = DatabaseConnection.getConnection()) {
+			Integer userId = findUserId(conn, username);
+			if (userId == null) {
+				return null;
+			}
+			try (PreparedStatement stmt = conn.prepareStatement(SQL_FILE_EXISTS)) {
+				stmt.setString(1, fileName);
+				stmt.setString(2, projectName);
+				stmt.setInt(3, userId);
+				try (ResultSet rs = stmt.executeQuery()) {
+					return rs.next();
+				}
+			}
+		}
+	}
+
+	private static void bindUpsert(PreparedStatement stmt, String fileName, long fileSize, String projectName,
+			int userId) throws SQLException {
+		stmt.setString(1, fileName);
+		stmt.setLong(2, fileSize);
+		stmt.setString(3, projectName);
+		stmt.setInt(4, userId);
+	}
+}
@@ -0,0 +1,326 @@
+package server;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One client connection of the NIO engine. Between requests it belongs to its selector thread, which
+// reads and parses the request head; during an exchange it belongs to the handler thread, which reads
+// the body and writes the response itself and only asks the selector to wake it when the socket has
+// nothing to read or no room to write. The read buffer is kept in read mode: position..limit is data
+// that has arrived but not been consumed, which may include the next pipelined request.
+class NioConnection {
+
+	private final NioHttpServer server;
+	private final NioHttpServer.SelectorLoop loop;
+	private final SocketChannel channel;
+	private final BufferPool bufferPool;
+	private final InetSocketAddress remoteAddress;
+	private final InetSocketAddress localAddress;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition readyCondition = lock.newCondition();
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private boolean ready;
+	private volatile boolean closed;
+	// Selector thread only
+	private boolean inExchange;
+	private long lastActivity = System.currentTimeMillis();
+
+	NioConnection(NioHttpServer server, NioHttpServer.SelectorLoop loop, SocketChannel channel, BufferPool bufferPool)
+			throws IOException {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+		this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	boolean isIdle() {
+		return !inExchange;
+	}
+
+	boolean isIdleSince(long time) {
+		return !inExchange && lastActivity < time;
+	}
+
+	// Part of the next request head has arrived
+	boolean hasBufferedInput() {
+		return !inExchange && readBuffer != null && readBuffer.hasRemaining();
+	}
+
+	// Selector thread
+	void onReady(SelectionKey selectedKey) {
+		if (!selectedKey.isValid()) {
+			close();
+			return;
+		}
+		if (inExchange) {
+			// The handler thread asked for this readiness; it does the I/O itself
+			selectedKey.interestOps(0);
+			signalReady();
+			return;
+		}
+		if (readBuffer == null) {
+			readBuffer = bufferPool.acquire().flip();
+		}
+		int read;
+		try {
+			readBuffer.compact();
+			read = channel.read(readBuffer);
+			readBuffer.flip();
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		if (read < 0) {
+			close();
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		parseHead(false);
+	}
+
+	// Selector thread: dispatches the next request if its head is complete in the buffer
+	private void parseHead(boolean pipelined) {
+		// Empty lines between requests are allowed and ignored
+		while (readBuffer.remaining() >= 2 && readBuffer.get(readBuffer.position()) == '\r'
+				&& readBuffer.get(readBuffer.position() + 1) == '\n') {
+			readBuffer.position(readBuffer.position() + 2);
+		}
+		int start = readBuffer.position();
+		int end = -1;
+		for (int i = start; i + 3 < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n' && readBuffer.get(i + 2) == '\r'
+					&& readBuffer.get(i + 3) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (readBuffer.remaining() == readBuffer.capacity()) {
+				rejectAndClose(431, "Request Header Fields Too Large");
+			} else if (!readBuffer.hasRemaining()) {
+				// Nothing buffered: an idle keep-alive connection holds no buffer
+				bufferPool.release(readBuffer);
+				readBuffer = null;
+			}
+			return;
+		}
+		byte[] head = new byte[end - start];
+		readBuffer.get(head);
+		readBuffer.position(end + 4);
+
+		NioHttpExchange exchange;
+		try {
+			exchange = parseRequest(new String(head, StandardCharsets.ISO_8859_1));
+		} catch (IllegalArgumentException | URISyntaxException e) {
+			rejectAndClose(400, "Bad Request");
+			return;
+		}
+		if (pipelined) {
+			server.recordPipelined();
+		}
+		inExchange = true;
+		key.interestOps(0);
+		server.dispatch(exchange);
+	}
+
+	private NioHttpExchange parseRequest(String head) throws URISyntaxException {
+		String[] lines = head.split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+			throw new IllegalArgumentException("Malformed request line");
+		}
+		Headers headers = new Headers();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("Malformed header");
+			}
+			headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+		}
+		String protocol = requestLine[2];
+		String connection = headers.getFirst("Connection");
+		boolean keepAlive = protocol.equals("HTTP/1.0") ? "keep-alive".equalsIgnoreCase(connection)
+				: !"close".equalsIgnoreCase(connection);
+		return new NioHttpExchange(this, requestLine[0], new URI(requestLine[1]), protocol, headers, keepAlive);
+	}
+
+	// Selector thread; best effort, the connection is closed either way
+	private void rejectAndClose(int code, String reason) {
+		byte[] response = ("HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		try {
+			channel.write(ByteBuffer.wrap(response));
+		} catch (IOException e) {
+			// Closing below
+		}
+		close();
+	}
+
+	// Handler thread: the exchange is over; the selector takes the connection back
+	void endExchange(boolean keepAlive) {
+		if (!keepAlive) {
+			closeFromExchange();
+			return;
+		}
+		loop.execute(() -> {
+			if (closed) {
+				releaseReadBuffer();
+				return;
+			}
+			inExchange = false;
+			lastActivity = System.currentTimeMillis();
+			if (readBuffer != null) {
+				parseHead(true);
+			}
+			if (!inExchange && !closed) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		});
+	}
+
+	// Handler thread: blocks until at least one byte is available; -1 at end of stream
+	int read(byte[] b, int off, int len) throws IOException {
+		if (readBuffer == null) {
+			readBuffer = bufferPool.acquire().flip();
+		}
+		while (!readBuffer.hasRemaining()) {
+			readBuffer.clear();
+			int read = channel.read(readBuffer);
+			readBuffer.flip();
+			if (read < 0) {
+				return -1;
+			}
+			if (read == 0) {
+				awaitReady(SelectionKey.OP_READ);
+			}
+		}
+		int count = Math.min(len, readBuffer.remaining());
+		readBuffer.get(b, off, count);
+		return count;
+	}
+
+	// Handler thread: blocks until all of buffer has been written
+	void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				awaitReady(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	private void awaitReady(int ops) throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+		long timeoutMillis = server.getIoTimeoutMillis();
+		if (loop.isLoopThread()) {
+			loop.awaitInline(channel, ops, timeoutMillis);
+			return;
+		}
+		lock.lock();
+		try {
+			ready = false;
+			loop.execute(() -> {
+				if (key.isValid()) {
+					key.interestOps(ops);
+				} else {
+					signalReady();
+				}
+			});
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (!ready && !closed) {
+				if (nanos <= 0) {
+					throw new SocketTimeoutException("Timed out waiting for the client");
+				}
+				nanos = readyCondition.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the client");
+		} finally {
+			lock.unlock();
+		}
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+	}
+
+	private void signalReady() {
+		lock.lock();
+		try {
+			ready = true;
+			readyCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Selector thread; while an exchange is running its handler thread still owns the read buffer
+	void close() {
+		if (shutdown() && !inExchange) {
+			releaseReadBuffer();
+		}
+	}
+
+	// Handler thread, which owns the read buffer until the exchange is over
+	void closeFromExchange() {
+		shutdown();
+		releaseReadBuffer();
+	}
+
+	private boolean shutdown() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing else to release
+		}
+		signalReady();
+		server.connectionClosed();
+		return true;
+	}
+
+	private void releaseReadBuffer() {
+		bufferPool.release(readBuffer);
+		readBuffer = null;
+	}
+}
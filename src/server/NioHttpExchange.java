@@ -0,0 +1,580 @@
+package server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// HttpExchange of the NIO engine. The response head and body share one pooled write buffer, so a
+// small response leaves in a single write; chunked bodies reserve room for the chunk header in
+// front of the data and fill it in when the chunk is emitted, so nothing is copied twice.
+class NioHttpExchange extends HttpExchange {
+
+	// Unread request body beyond this is not drained for keep-alive; the connection is closed instead
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+	// Six hex digits and CRLF in front of each chunk, CRLF after it
+	private static final int CHUNK_HEADER = 8;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final Map<Integer, String> REASONS = Map.ofEntries(Map.entry(200, "OK"), Map.entry(201, "Created"),
+			Map.entry(204, "No Content"), Map.entry(206, "Partial Content"), Map.entry(301, "Moved Permanently"),
+			Map.entry(302, "Found"), Map.entry(304, "Not Modified"), Map.entry(400, "Bad Request"),
+			Map.entry(401, "Unauthorized"), Map.entry(403, "Forbidden"), Map.entry(404, "Not Found"),
+			Map.entry(405, "Method Not Allowed"), Map.entry(409, "Conflict"), Map.entry(413, "Payload Too Large"),
+			Map.entry(415, "Unsupported Media Type"), Map.entry(416, "Range Not Satisfiable"),
+			Map.entry(422, "Unprocessable Entity"), Map.entry(429, "Too Many Requests"),
+			Map.entry(500, "Internal Server Error"), Map.entry(503, "Service Unavailable"));
+
+	private static volatile String cachedDate = "";
+	private static volatile long cachedDateSecond;
+
+	private final NioConnection connection;
+	private final String method;
+	private final URI uri;
+	private final String protocol;
+	private final Headers requestHeaders;
+	private final Headers responseHeaders = new Headers();
+	private final Map<String, Object> attributes = new HashMap<>();
+	private boolean keepAlive;
+	private final boolean expectContinue;
+	private boolean continueSent;
+	private HttpContext context;
+	private HttpPrincipal principal;
+	private InputStream requestBody;
+	private OutputStream responseBody;
+	private final RequestBody rawRequestBody;
+	private final ResponseBody rawResponseBody = new ResponseBody();
+	private int responseCode = -1;
+	private boolean finished;
+
+	NioHttpExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders,
+			boolean keepAlive) {
+		this.connection = connection;
+		this.method = method;
+		this.uri = uri;
+		this.protocol = protocol;
+		this.requestHeaders = requestHeaders;
+		this.keepAlive = keepAlive;
+		this.expectContinue = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+
+		String transferEncoding = requestHeaders.getFirst("Transfer-Encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked")) {
+			this.rawRequestBody = new ChunkedRequestBody();
+		} else {
+			String contentLength = requestHeaders.getFirst("Content-Length");
+			long length = 0;
+			if (contentLength != null) {
+				try {
+					length = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid Content-Length");
+				}
+				if (length < 0) {
+					throw new IllegalArgumentException("Invalid Content-Length");
+				}
+			}
+			this.rawRequestBody = new FixedRequestBody(length);
+		}
+		this.requestBody = rawRequestBody;
+		this.responseBody = rawResponseBody;
+	}
+
+	void setContext(HttpContext context) {
+		this.context = context;
+	}
+
+	void setPrincipal(HttpPrincipal principal) {
+		this.principal = principal;
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return method;
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return context;
+	}
+
+	@Override
+	public void close() {
+		try {
+			requestBody.close();
+			if (responseCode < 0) {
+				// Nothing was sent, so there is no way to tell the client where this response ends
+				keepAlive = false;
+			}
+			responseBody.close();
+		} catch (IOException e) {
+			abort();
+		}
+		finish();
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return responseBody;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		if (responseCode >= 0) {
+			throw new IOException("Headers already sent");
+		}
+		responseCode = rCode;
+		boolean head = "HEAD".equals(method);
+		boolean noBody = responseLength < 0 || rCode == 204 || rCode == 304 || rCode < 200 || head;
+		if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+			keepAlive = false;
+		}
+		// HTTP/1.0 has no chunked encoding, so a body of unknown length runs until the connection closes
+		boolean untilClose = !noBody && responseLength == 0 && "HTTP/1.0".equals(protocol);
+		if (untilClose) {
+			keepAlive = false;
+		}
+
+		StringBuilder out = new StringBuilder(256);
+		out.append("HTTP/1.1 ").append(rCode).append(' ').append(REASONS.getOrDefault(rCode, "")).append("\r\n");
+		if (!responseHeaders.containsKey("Date")) {
+			out.append("Date: ").append(currentDate()).append("\r\n");
+		}
+		for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+			if (header.getKey().equalsIgnoreCase("Content-Length")
+					|| header.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				out.append(header.getKey()).append(": ").append(value).append("\r\n");
+			}
+		}
+		if (head && responseLength > 0) {
+			out.append("Content-Length: ").append(responseLength).append("\r\n");
+		} else if (rCode != 204 && rCode != 304 && rCode >= 200) {
+			if (noBody) {
+				out.append("Content-Length: 0\r\n");
+			} else if (responseLength == 0) {
+				if (!untilClose) {
+					out.append("Transfer-Encoding: chunked\r\n");
+				}
+			} else {
+				out.append("Content-Length: ").append(responseLength).append("\r\n");
+			}
+		}
+		if (!responseHeaders.containsKey("Connection")) {
+			if (!keepAlive) {
+				out.append("Connection: close\r\n");
+			} else if ("HTTP/1.0".equals(protocol)) {
+				out.append("Connection: keep-alive\r\n");
+			}
+		}
+		out.append("\r\n");
+
+		rawResponseBody.start(noBody ? 0 : untilClose ? Long.MAX_VALUE : responseLength == 0 ? -1 : responseLength);
+		rawResponseBody.put(out.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (noBody) {
+			rawResponseBody.close();
+		}
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return connection.getRemoteAddress();
+	}
+
+	@Override
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return connection.getLocalAddress();
+	}
+
+	@Override
+	public String getProtocol() {
+		return protocol;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			requestBody = i;
+		}
+		if (o != null) {
+			responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return principal;
+	}
+
+	// Plain-text error for requests that never reached a handler
+	void sendError(int code, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		responseHeaders.set("Content-Type", "text/plain; charset=utf-8");
+		sendResponseHeaders(code, body.length);
+		rawResponseBody.write(body, 0, body.length);
+		rawResponseBody.close();
+		finish();
+	}
+
+	// Called once the handler has returned: completes whatever the handler left open
+	void finish() {
+		if (finished) {
+			return;
+		}
+		if (responseCode < 0) {
+			// The handler never answered; closing is the only way to end the exchange
+			abort();
+			return;
+		}
+		try {
+			rawResponseBody.close();
+			if (keepAlive && !rawRequestBody.drain(MAX_DRAIN_BYTES)) {
+				keepAlive = false;
+			}
+		} catch (IOException e) {
+			abort();
+			return;
+		}
+		finished = true;
+		connection.endExchange(keepAlive);
+	}
+
+	void abort() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		rawResponseBody.release();
+		connection.closeFromExchange();
+	}
+
+	private static String currentDate() {
+		long second = System.currentTimeMillis() / 1000;
+		if (second != cachedDateSecond) {
+			cachedDate = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+			cachedDateSecond = second;
+		}
+		return cachedDate;
+	}
+
+	private abstract class RequestBody extends InputStream {
+		private boolean closed;
+
+		abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (expectContinue && !continueSent && responseCode < 0) {
+				continueSent = true;
+				connection.write(ByteBuffer.wrap(CONTINUE));
+			}
+			return readBody(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+		}
+
+		// Reads what is left of the body so the next request starts at the right place; false if more than
+		// limit bytes were left, or the client was never told to send them
+		boolean drain(int limit) throws IOException {
+			if (expectContinue && !continueSent) {
+				return isEmpty();
+			}
+			byte[] buffer = new byte[Math.min(limit, 8192)];
+			int total = 0;
+			int read;
+			while ((read = readBody(buffer, 0, buffer.length)) >= 0) {
+				total += read;
+				if (total > limit) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		abstract boolean isEmpty();
+	}
+
+	private class FixedRequestBody extends RequestBody {
+		private long remaining;
+
+		FixedRequestBody(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		int readBody(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int read = connection.read(b, off, (int) Math.min(len, remaining));
+			if (read < 0) {
+				throw new IOException("Connection closed before the request body was complete");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		boolean isEmpty() {
+			return remaining == 0;
+		}
+	}
+
+	private class ChunkedRequestBody extends RequestBody {
+		private long chunkRemaining;
+		private boolean done;
+		private final byte[] one = new byte[1];
+
+		@Override
+		int readBody(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (chunkRemaining == 0) {
+				chunkRemaining = readChunkSize();
+				if (chunkRemaining == 0) {
+					// Trailer fields end with an empty line
+					while (!readLine().isEmpty()) {
+						// Trailers are not exposed
+					}
+					done = true;
+					return -1;
+				}
+			}
+			int read = connection.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (read < 0) {
+				throw new IOException("Connection closed inside a chunk");
+			}
+			chunkRemaining -= read;
+			if (chunkRemaining == 0 && !readLine().isEmpty()) {
+				throw new IOException("Malformed chunk");
+			}
+			return read;
+		}
+
+		private long readChunkSize() throws IOException {
+			String line = readLine();
+			int semicolon = line.indexOf(';');
+			try {
+				return Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed chunk size");
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			while (true) {
+				if (connection.read(one, 0, 1) < 0) {
+					throw new IOException("Connection closed inside a chunk header");
+				}
+				if (one[0] == '\n') {
+					int length = line.length();
+					return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+				}
+				if (line.length() > 4096) {
+					throw new IOException("Chunk header too long");
+				}
+				line.append((char) one[0]);
+			}
+		}
+
+		@Override
+		boolean isEmpty() {
+			return done;
+		}
+	}
+
+	private class ResponseBody extends OutputStream {
+		private ByteBuffer buffer;
+		// Bytes the handler may still write: -1 for chunked, Long.MAX_VALUE until close, otherwise the
+		// declared length minus what was written
+		private long remaining;
+		private boolean chunked;
+		private int chunkStart = -1;
+		private boolean closed;
+
+		void start(long length) {
+			buffer = connection.getBufferPool().acquire();
+			chunked = length < 0;
+			remaining = length;
+		}
+
+		void put(byte[] b) throws IOException {
+			int off = 0;
+			while (off < b.length) {
+				if (!buffer.hasRemaining()) {
+					flushBuffer();
+				}
+				int count = Math.min(b.length - off, buffer.remaining());
+				buffer.put(b, off, count);
+				off += count;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (buffer == null) {
+				throw new IOException("sendResponseHeaders has not been called");
+			}
+			if (!chunked) {
+				if ("HEAD".equals(method)) {
+					return;
+				}
+				if (len > remaining) {
+					throw new IOException("Too many bytes to write to stream");
+				}
+				remaining -= len;
+			}
+			while (len > 0) {
+				if (chunked && chunkStart < 0) {
+					if (buffer.remaining() < CHUNK_HEADER + 3) {
+						flushBuffer();
+					}
+					chunkStart = buffer.position();
+					buffer.position(chunkStart + CHUNK_HEADER);
+				}
+				int room = buffer.remaining() - (chunked ? 2 : 0);
+				if (room <= 0) {
+					endChunk();
+					flushBuffer();
+					continue;
+				}
+				int count = Math.min(len, room);
+				buffer.put(b, off, count);
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (buffer != null && !closed) {
+				endChunk();
+				flushBuffer();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed || buffer == null) {
+				return;
+			}
+			closed = true;
+			try {
+				if (chunked) {
+					endChunk();
+					put(new byte[] { '0', '\r', '\n', '\r', '\n' });
+				} else if (remaining > 0 && !"HEAD".equals(method)) {
+					// The client would wait for the missing bytes forever
+					keepAlive = false;
+				}
+				flushBuffer();
+			} finally {
+				release();
+			}
+		}
+
+		void release() {
+			connection.getBufferPool().release(buffer);
+			buffer = null;
+		}
+
+		private void endChunk() {
+			if (chunkStart < 0) {
+				return;
+			}
+			int size = buffer.position() - chunkStart - CHUNK_HEADER;
+			if (size == 0) {
+				buffer.position(chunkStart);
+			} else {
+				for (int i = 0; i < 6; i++) {
+					buffer.put(chunkStart + i, HEX[(size >> (4 * (5 - i))) & 0xf]);
+				}
+				buffer.put(chunkStart + 6, (byte) '\r');
+				buffer.put(chunkStart + 7, (byte) '\n');
+				buffer.put((byte) '\r').put((byte) '\n');
+			}
+			chunkStart = -1;
+		}
+
+		private void flushBuffer() throws IOException {
+			buffer.flip();
+			connection.write(buffer);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,553 @@
+package server;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Non-blocking HTTP/1.1 engine behind the com.sun.net.httpserver API, so ServerContextSetup and the
+// handlers run on it unchanged. An acceptor thread hands connections round-robin to a fixed set of
+// selector threads (one per core by default); a connection stays on its selector for life. The
+// selector parses request heads, then the exchange runs on the executor with blocking streams that
+// park the handler thread until the selector reports the socket ready. Connections are kept alive,
+// and pipelined requests already in the read buffer are parsed as soon as the previous one ends.
+public class NioHttpServer extends HttpServer {
+
+	// Once stopped, a connection with no exchange running is closed after this long without traffic
+	private static final long STOP_IDLE_MILLIS = 200;
+
+	private final int selectorCount;
+	private final BufferPool bufferPool;
+	private final long idleTimeoutMillis;
+	private final long ioTimeoutMillis;
+	private final List<Context> contexts = new CopyOnWriteArrayList<>();
+	private final AtomicInteger activeExchanges = new AtomicInteger();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final LongAdder pipelinedRequests = new LongAdder();
+	private ServerSocketChannel serverChannel;
+	private SelectorLoop[] loops;
+	private Thread acceptorThread;
+	private Selector acceptSelector;
+	// Acceptor thread only
+	private int nextLoop;
+	private volatile Executor executor;
+	private volatile boolean running;
+	private volatile boolean terminated;
+	// The listening socket now belongs to a replacement listener and must stay open
+	private volatile boolean handedOver;
+
+	public NioHttpServer(InetSocketAddress address, int backlog, int selectorCount, BufferPool bufferPool,
+			long idleTimeoutMillis, long ioTimeoutMillis) throws IOException {
+		this.selectorCount = selectorCount > 0 ? selectorCount : Runtime.getRuntime().availableProcessors();
+		this.bufferPool = bufferPool;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.ioTimeoutMillis = ioTimeoutMillis;
+		if (address != null) {
+			bind(address, backlog);
+		}
+	}
+
+	@Override
+	public void bind(InetSocketAddress address, int backlog) throws IOException {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Already bound");
+		}
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(address, backlog);
+		serverChannel = channel;
+	}
+
+	// Takes over the listening socket of a listener that was stopped with handOver
+	public void bind(ServerSocketChannel channel) {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Already bound");
+		}
+		serverChannel = channel;
+	}
+
+	// Stops accepting and gives up the listening socket without closing it, so a replacement can bind it
+	// while connections keep queuing on it; stop still has to be called to finish the open connections
+	public ServerSocketChannel handOver() {
+		if (acceptorThread == null || !running) {
+			throw new IllegalStateException("Not running");
+		}
+		handedOver = true;
+		running = false;
+		acceptSelector.wakeup();
+		try {
+			acceptorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return serverChannel;
+	}
+
+	@Override
+	public void start() {
+		if (serverChannel == null || running) {
+			throw new IllegalStateException(serverChannel == null ? "Not bound" : "Already started");
+		}
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool();
+		}
+		running = true;
+		terminated = false;
+		loops = new SelectorLoop[selectorCount];
+		for (int i = 0; i < loops.length; i++) {
+			try {
+				loops[i] = new SelectorLoop(i);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open a selector", e);
+			}
+			loops[i].thread.start();
+		}
+		try {
+			// Non-blocking, so stop() can wake the acceptor without closing the socket under it
+			serverChannel.configureBlocking(false);
+			acceptSelector = Selector.open();
+			serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open the accept selector", e);
+		}
+		acceptorThread = new Thread(this::acceptLoop, "nio-acceptor");
+		acceptorThread.setDaemon(true);
+		acceptorThread.start();
+	}
+
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	// Stops accepting at once, then waits up to delay seconds before closing every connection, as
+	// HttpServer.stop does. Connections already queued on the listening socket are accepted first, since
+	// closing the socket would reset them, and the wait ends early once every connection has finished its
+	// exchange and gone quiet, including ones accepted just before the stop whose request is still arriving
+	@Override
+	public void stop(int delay) {
+		long deadline = System.currentTimeMillis() + delay * 1000L;
+		running = false;
+		if (acceptorThread != null) {
+			if (!handedOver) {
+				acceptSelector.wakeup();
+			}
+			try {
+				acceptorThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			closeServerChannel();
+		}
+		if (loops != null) {
+			// Selectors switch to the short idle check
+			for (SelectorLoop loop : loops) {
+				loop.selector.wakeup();
+			}
+		}
+		while (openConnections.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		terminated = true;
+		if (loops != null) {
+			for (SelectorLoop loop : loops) {
+				loop.selector.wakeup();
+			}
+			for (SelectorLoop loop : loops) {
+				try {
+					loop.thread.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	@Override
+	public HttpContext createContext(String path, HttpHandler handler) {
+		Context context = createContext(path);
+		context.setHandler(handler);
+		return context;
+	}
+
+	@Override
+	public Context createContext(String path) {
+		if (path == null || !path.startsWith("/")) {
+			throw new IllegalArgumentException("Invalid context path: " + path);
+		}
+		for (Context context : contexts) {
+			if (context.path.equals(path)) {
+				throw new IllegalArgumentException("Context already exists: " + path);
+			}
+		}
+		Context context = new Context(path);
+		contexts.add(context);
+		return context;
+	}
+
+	@Override
+	public void removeContext(String path) {
+		if (!contexts.removeIf(context -> context.path.equals(path))) {
+			throw new IllegalArgumentException("No context for " + path);
+		}
+	}
+
+	@Override
+	public void removeContext(HttpContext context) {
+		contexts.remove(context);
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) serverChannel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public int getOpenConnectionCount() {
+		return openConnections.get();
+	}
+
+	public int getActiveExchangeCount() {
+		return activeExchanges.get();
+	}
+
+	public long getPipelinedRequestCount() {
+		return pipelinedRequests.sum();
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	long getIoTimeoutMillis() {
+		return ioTimeoutMillis;
+	}
+
+	void recordPipelined() {
+		pipelinedRequests.increment();
+	}
+
+	// Called on the connection's selector thread once a request head has been parsed
+	void dispatch(NioHttpExchange exchange) {
+		activeExchanges.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					handle(exchange);
+				} finally {
+					activeExchanges.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			activeExchanges.decrementAndGet();
+			exchange.abort();
+		}
+	}
+
+	private void handle(NioHttpExchange exchange) {
+		try {
+			Context context = findContext(exchange.getRequestURI().getPath());
+			if (context == null || context.getHandler() == null) {
+				exchange.sendError(404, "No context found for request");
+				return;
+			}
+			exchange.setContext(context);
+			if (context.authenticator != null && !authenticate(context.authenticator, exchange)) {
+				return;
+			}
+			new Filter.Chain(context.filters, context.getHandler()).doFilter(exchange);
+			exchange.finish();
+		} catch (IOException | RuntimeException e) {
+			RequestHandlers.logger.fine("Exchange failed: " + e);
+			exchange.abort();
+		}
+	}
+
+	private boolean authenticate(Authenticator authenticator, NioHttpExchange exchange) throws IOException {
+		Authenticator.Result result = authenticator.authenticate(exchange);
+		if (result instanceof Authenticator.Success) {
+			exchange.setPrincipal(((Authenticator.Success) result).getPrincipal());
+			return true;
+		}
+		int code = result instanceof Authenticator.Failure ? ((Authenticator.Failure) result).getResponseCode()
+				: ((Authenticator.Retry) result).getResponseCode();
+		exchange.sendResponseHeaders(code, -1);
+		exchange.finish();
+		return false;
+	}
+
+	// Longest context path that prefixes the request path, as HttpServer matches them
+	private Context findContext(String path) {
+		Context best = null;
+		if (path == null) {
+			return null;
+		}
+		for (Context context : contexts) {
+			if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+				best = context;
+			}
+		}
+		return best;
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				acceptPending();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				// Usually out of file descriptors; back off instead of spinning
+				RequestHandlers.logger.warning("Accept failed: " + e.getMessage());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+			}
+		}
+		// The kernel resets whatever is still queued when the socket closes, so it is accepted here. A socket
+		// that was handed over stays open and what arrives from now on waits for the replacement listener
+		try {
+			acceptPending();
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Accept failed while stopping: " + e.getMessage());
+		}
+		if (!handedOver) {
+			closeServerChannel();
+		}
+		try {
+			// Also deregisters the socket, so a replacement listener can register it with its own selector
+			acceptSelector.close();
+		} catch (IOException e) {
+			// Shutting down anyway
+		}
+	}
+
+	// Hands every connection waiting on the listening socket to a selector, round-robin
+	private int acceptPending() throws IOException {
+		int accepted = 0;
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			accepted++;
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SelectorLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				NioConnection connection = new NioConnection(this, loop, channel, bufferPool);
+				openConnections.incrementAndGet();
+				loop.execute(() -> loop.register(connection));
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// Nothing left to clean up
+				}
+			}
+		}
+		return accepted;
+	}
+
+	private void closeServerChannel() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	class SelectorLoop implements Runnable {
+		final Selector selector;
+		final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		// Used when a handler runs on this thread (SINGLE executor or a saturated pool) and has to wait
+		// for its own socket, which the main selector would only report after the handler returned
+		private Selector blockingSelector;
+		private long lastIdleCheck = System.currentTimeMillis();
+
+		SelectorLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "nio-selector-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		boolean isLoopThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		void register(NioConnection connection) {
+			try {
+				connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+
+		void awaitInline(SocketChannel channel, int ops, long timeoutMillis) throws IOException {
+			if (blockingSelector == null) {
+				blockingSelector = Selector.open();
+			}
+			SelectionKey key = channel.register(blockingSelector, ops);
+			try {
+				if (blockingSelector.select(timeoutMillis) == 0) {
+					throw new SocketTimeoutException("Timed out waiting for the client");
+				}
+			} finally {
+				key.cancel();
+				blockingSelector.selectNow();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!terminated) {
+				try {
+					selector.select(running ? 1000 : STOP_IDLE_MILLIS / 4);
+				} catch (IOException e) {
+					RequestHandlers.logger.warning("Selector failed: " + e.getMessage());
+					break;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					((NioConnection) key.attachment()).onReady(key);
+				}
+				selector.selectedKeys().clear();
+
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= (running ? 1000 : STOP_IDLE_MILLIS / 4)) {
+					lastIdleCheck = now;
+					for (SelectionKey key : new ArrayList<>(selector.keys())) {
+						NioConnection connection = (NioConnection) key.attachment();
+						long idleMillis = running ? idleTimeoutMillis
+								: connection.hasBufferedInput() ? ioTimeoutMillis : STOP_IDLE_MILLIS;
+						if (connection.isIdleSince(now - idleMillis)) {
+							connection.close();
+						}
+					}
+				}
+			}
+			for (SelectionKey key : new ArrayList<>(selector.keys())) {
+				((NioConnection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+				if (blockingSelector != null) {
+					blockingSelector.close();
+				}
+			} catch (IOException e) {
+				// Shutting down anyway
+			}
+		}
+	}
+
+	class Context extends HttpContext {
+		private final String path;
+		private final Map<String, Object> attributes = new HashMap<>();
+		private final List<Filter> filters = new CopyOnWriteArrayList<>();
+		private volatile HttpHandler handler;
+		private volatile Authenticator authenticator;
+
+		Context(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public HttpHandler getHandler() {
+			return handler;
+		}
+
+		@Override
+		public void setHandler(HttpHandler handler) {
+			if (this.handler != null) {
+				throw new IllegalArgumentException("Handler already set");
+			}
+			this.handler = handler;
+		}
+
+		@Override
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public HttpServer getServer() {
+			return NioHttpServer.this;
+		}
+
+		@Override
+		public Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		@Override
+		public List<Filter> getFilters() {
+			return filters;
+		}
+
+		@Override
+		public Authenticator setAuthenticator(Authenticator authenticator) {
+			Authenticator previous = this.authenticator;
+			this.authenticator = authenticator;
+			return previous;
+		}
+
+		@Override
+		public Authenticator getAuthenticator() {
+			return authenticator;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Deletes projects in the background. A delete request renames the project directory into the trash
+// directory, which is one rename however large the project is; the handler then commits the database
+// change and replies, and the reaper removes the files afterwards. Each trashed directory has a
+// .project file next to it recording whether the database delete was committed, so deletions cut
+// short by a restart are finished, database included, when the server starts again. Until then the
+// project name stays reserved, so the database delete cannot hit a new project of the same name.
+public class ProjectReaper {
+
+	public static class Entry {
+		private final String id;
+		private final String username;
+		private final String projectName;
+		private final File directory;
+		private final File original;
+		private volatile boolean committed;
+		// The database delete failed and the client was told so: the files go back, never to the reaper
+		private volatile boolean restoring;
+		private int attempts;
+
+		Entry(String id, String username, String projectName, File directory, File original, boolean committed) {
+			this.id = id;
+			this.username = username;
+			this.projectName = projectName;
+			this.directory = directory;
+			this.original = original;
+			this.committed = committed;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getProjectName() {
+			return projectName;
+		}
+	}
+
+	private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+
+	private final File trashDir;
+	private final MetadataStore metadataStore;
+	private final long retryDelayMillis;
+	private final ForkJoinPool deletePool;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+	private final LongAdder deletedFiles = new LongAdder();
+	private final LongAdder deletedBytes = new LongAdder();
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder retryCount = new LongAdder();
+
+	public ProjectReaper(File trashDir, MetadataStore metadataStore, int parallelism, long retryDelayMillis) {
+		this.trashDir = trashDir;
+		this.metadataStore = metadataStore;
+		this.retryDelayMillis = Math.max(1, retryDelayMillis);
+		this.deletePool = new ForkJoinPool(Math.max(1, parallelism));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "project-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		trashDir.mkdirs();
+		recover();
+	}
+
+	// The trash directory must be on the same file system as html/, otherwise the rename fails
+	public Entry moveToTrash(String username, String projectName, File projectDir) throws IOException {
+		String id = UUID.randomUUID().toString().replace("-", "");
+		Entry entry = new Entry(id, username, projectName, new File(trashDir, id), projectDir, false);
+		writeState(entry);
+		pending.put(entry.id, entry);
+		try {
+			Files.move(projectDir.toPath(), entry.directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			pending.remove(entry.id);
+			stateFile(entry).delete();
+			throw e;
+		}
+		return entry;
+	}
+
+	// The database change is committed: the files are no longer reachable and can be deleted at leisure
+	public void commit(Entry entry) {
+		entry.committed = true;
+		try {
+			writeState(entry);
+		} catch (IOException e) {
+			// Only costs a repeated, harmless database delete if the server restarts before the reaper finishes
+			RequestHandlers.logger.warning("Could not mark deletion of " + entry.original + " as committed: "
+					+ e.getMessage());
+		}
+		schedule(entry, 0);
+	}
+
+	// The database change failed: put the project back where it was. If the move fails the files stay in
+	// the trash and the move is retried, here and after a restart
+	public void restore(Entry entry) {
+		entry.restoring = true;
+		try {
+			writeState(entry);
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Could not mark " + entry.original + " for restoring: " + e.getMessage());
+		}
+		try {
+			moveBack(entry);
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Could not restore " + entry.original + " from the trash: " + e.getMessage());
+			schedule(entry, retryDelayMillis);
+		}
+	}
+
+	// True while a delete of the project has not reached the database, or is being undone; the name must
+	// not be reused until then
+	public boolean isPending(String username, String projectName) {
+		for (Entry entry : pending.values()) {
+			if (!entry.committed && projectName.equals(entry.projectName) && username.equals(entry.username)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getDeletedFileCount() {
+		return deletedFiles.sum();
+	}
+
+	public long getDeletedBytes() {
+		return deletedBytes.sum();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	public long getRetryCount() {
+		return retryCount.sum();
+	}
+
+	private void schedule(Entry entry, long delayMillis) {
+		pending.put(entry.id, entry);
+		scheduler.schedule(() -> reap(entry), delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void reap(Entry entry) {
+		if (entry.restoring) {
+			retryRestore(entry);
+			return;
+		}
+		try {
+			if (!entry.committed) {
+				// Interrupted between the rename and the database commit: finish the delete the client asked for
+				metadataStore.deleteProject(entry.username, entry.projectName);
+				entry.committed = true;
+				writeState(entry);
+			}
+			LongAdder failures = new LongAdder();
+			if (entry.directory.exists()) {
+				deletePool.invoke(new DeleteTask(entry.directory, failures));
+			}
+			if (failures.sum() > 0) {
+				throw new IOException(failures.sum() + " files could not be deleted");
+			}
+			stateFile(entry).delete();
+			pending.remove(entry.id);
+			completedCount.increment();
+		} catch (SQLException | IOException | RuntimeException e) {
+			retryCount.increment();
+			long delay = Math.min(retryDelayMillis << Math.min(entry.attempts++, 16), MAX_RETRY_DELAY_MILLIS);
+			RequestHandlers.logger.warning("Could not finish deleting " + entry.directory + " (attempt " + entry.attempts
+					+ "), retrying in " + delay + " ms: " + e.getMessage());
+			scheduler.schedule(() -> reap(entry), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void moveBack(Entry entry) throws IOException {
+		Files.move(entry.directory.toPath(), entry.original.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		stateFile(entry).delete();
+		pending.remove(entry.id);
+	}
+
+	private void retryRestore(Entry entry) {
+		try {
+			moveBack(entry);
+			RequestHandlers.logger.info("Restored " + entry.original + " from the trash");
+		} catch (IOException e) {
+			long delay = Math.min(retryDelayMillis << Math.min(entry.attempts++, 16), MAX_RETRY_DELAY_MILLIS);
+			RequestHandlers.logger.warning("Could not restore " + entry.original + " from " + entry.directory
+					+ " (attempt " + entry.attempts + "), retrying in " + delay + " ms: " + e.getMessage());
+			scheduler.schedule(() -> reap(entry), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Subdirectories are deleted in parallel; a file that cannot be deleted is counted and left for the retry
+	private class DeleteTask extends RecursiveAction {
+		private final File directory;
+		private final LongAdder failures;
+
+		DeleteTask(File directory, LongAdder failures) {
+			this.directory = directory;
+			this.failures = failures;
+		}
+
+		@Override
+		protected void compute() {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				List<DeleteTask> subdirectories = new ArrayList<>();
+				for (File file : files) {
+					// Symbolic links are deleted, never followed
+					if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+						subdirectories.add(new DeleteTask(file, failures));
+					} else {
+						long size = file.length();
+						if (file.delete()) {
+							deletedFiles.increment();
+							deletedBytes.add(size);
+						} else {
+							failures.increment();
+						}
+					}
+				}
+				invokeAll(subdirectories);
+			}
+			if (!directory.delete() && directory.exists()) {
+				failures.increment();
+			}
+		}
+	}
+
+	private File stateFile(Entry entry) {
+		return new File(trashDir, entry.id + ".project");
+	}
+
+	private void writeState(Entry entry) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("username", entry.username);
+		properties.setProperty("projectName", entry.projectName);
+		properties.setProperty("original", entry.original.getPath());
+		properties.setProperty("committed", Boolean.toString(entry.committed));
+		properties.setProperty("restoring", Boolean.toString(entry.restoring));
+		File target = stateFile(entry);
+		File temp = new File(trashDir, entry.id + ".project.tmp");
+		try (FileOutputStream os = new FileOutputStream(temp)) {
+			properties.store(os, null);
+			os.getFD().sync();
+		}
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void recover() {
+		File[] files = trashDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".project.tmp")) {
+				file.delete();
+			} else if (name.endsWith(".project")) {
+				String id = name.substring(0, name.length() - ".project".length());
+				File directory = new File(trashDir, id);
+				if (!directory.exists()) {
+					// Either the rename never happened or the files were already gone
+					file.delete();
+					continue;
+				}
+				Properties properties = new Properties();
+				try (InputStream is = new FileInputStream(file)) {
+					properties.load(is);
+				} catch (IOException e) {
+					RequestHandlers.logger.warning("Could not read " + file + ", deleting its files only: " + e.getMessage());
+					schedule(new Entry(id, null, null, directory, directory, true), 0);
+					continue;
+				}
+				Entry entry = new Entry(id, properties.getProperty("username"), properties.getProperty("projectName"),
+						directory, new File(properties.getProperty("original", "")),
+						Boolean.parseBoolean(properties.getProperty("committed")));
+				entry.restoring = Boolean.parseBoolean(properties.getProperty("restoring"));
+				if (entry.username == null || entry.projectName == null) {
+					entry.committed = true;
+					entry.restoring = false;
+				}
+				schedule(entry, 0);
+			} else if (file.isDirectory() && !new File(trashDir, name + ".project").exists()) {
+				// The state file goes last, so a directory without one was only partly deleted
+				schedule(new Entry(name, null, null, file, file, true), 0);
+			}
+		}
+		if (!pending.isEmpty()) {
+			RequestHandlers.logger.info("Resuming " + pending.size() + " pending project deletions");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ReceivedDataStore {
+
+	public static class Record {
+		private final long sequence;
+		private final long timestamp;
+		private final Map<String, String> data;
+
+		Record(long sequence, long timestamp, Map<String, String> data) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.data = data;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public Map<String, String> getData() {
+			return data;
+		}
+	}
+
+	private final AtomicReferenceArray<Record> slots;
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final FileChannel spillChannel;
+
+	public ReceivedDataStore(int capacity, File spillFile) {
+		this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+		FileChannel channel = null;
+		if (spillFile != null) {
+			try {
+				File parent = spillFile.getAbsoluteFile().getParentFile();
+				if (parent != null) {
+					parent.mkdirs();
+				}
+				channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				RequestHandlers.logger.warning("Could not open received data file: " + e.getMessage());
+			}
+		}
+		this.spillChannel = channel;
+	}
+
+	// Overwrites the oldest record once the store is full
+	public long add(Map<String, String> data) {
+		long sequence = nextSequence.getAndIncrement();
+		Record record = new Record(sequence, System.currentTimeMillis(), Collections.unmodifiableMap(data));
+		slots.set((int) (sequence % slots.length()), record);
+		if (spillChannel != null) {
+			spill(record);
+		}
+		return sequence;
+	}
+
+	private void spill(Record record) {
+		ByteBuffer line = ByteBuffer
+				.wrap((record.sequence + "\t" + record.timestamp + "\t" + record.data + "\n").getBytes(StandardCharsets.UTF_8));
+		try {
+			// FileChannel serializes writes that extend the file, so concurrent POSTs land on separate lines
+			while (line.hasRemaining()) {
+				spillChannel.write(line);
+			}
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Could not append received data: " + e.getMessage());
+		}
+	}
+
+	public long getFirstSequence() {
+		return Math.max(0, nextSequence.get() - slots.length());
+	}
+
+	public long getNextSequence() {
+		return nextSequence.get();
+	}
+
+	public int size() {
+		return (int) (nextSequence.get() - getFirstSequence());
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	public List<Record> page(long fromSequence, int limit) {
+		long end = nextSequence.get();
+		long start = Math.max(fromSequence, Math.max(0, end - slots.length()));
+		List<Record> records = new ArrayList<>((int) Math.max(0, Math.min(limit, end - start)));
+		for (long sequence = start; sequence < end && records.size() < limit; sequence++) {
+			Record record = slots.get((int) (sequence % slots.length()));
+			// Skip slots that were overwritten or are still being published
+			if (record != null && record.sequence == sequence) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+}
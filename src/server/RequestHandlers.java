@@ -2,24 +2,17 @@ package server;
 
 import com.sun.net.httpserver.HttpExchange;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.URLDecoder;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
@@ -27,36 +20,110 @@ import java.util.logging.Logger;
 
 public class RequestHandlers {
 	private final Server server;
+	private final StaticFileCache fileCache;
+	private final StaticFileHandler staticFileHandler;
+	private final UploadManager uploadManager;
+	private final UserIdCache userIdCache;
+	private final MetadataStore metadataStore;
+	private final AccessLog accessLog;
+	private final SiteIndex siteIndex;
+	private final ProjectReaper projectReaper;
+	private final BulkUploader bulkUploader;
+	private final SessionStore sessionStore;
+	private final int maxFormParameters;
+	private final int maxFormBytes;
 
 	public RequestHandlers(Server server) {
+		this(server, server.getConfig());
+		// The writer is a daemon thread, so entries still in the ring would be lost when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(accessLog::shutdown, "access-log-shutdown"));
+	}
+
+	// Handlers without a Server, for benchmarks that call them directly: no admission control, no shutdown
+	// hook, and the site index is only watched if the config asks for it. /metrics and the host URL in
+	// served HTML need a server and are not available
+	RequestHandlers(ServerConfig config) {
+		this(null, config);
+	}
+
+	private RequestHandlers(Server server, ServerConfig config) {
 		this.server = server;
+		this.fileCache = new StaticFileCache(config.getLong("cache.maxBytes", 64L * 1024 * 1024),
+				config.getLong("cache.maxEntryBytes", 1024 * 1024));
+		this.staticFileHandler = new StaticFileHandler(server, fileCache,
+				config.getLong("static.streamThreshold", 1024 * 1024), config.getInt("compression.minSize", 1024));
+		this.uploadManager = new UploadManager(new File(config.getString("upload.dir", "uploads")),
+				config.getLong("upload.sessionTimeoutMillis", 24L * 60 * 60 * 1000),
+				config.getLong("upload.maxFileBytes", 1024L * 1024 * 1024));
+		this.bulkUploader = new BulkUploader(uploadManager, config.getInt("bulkUpload.writerThreads", 4),
+				config.getInt("bulkUpload.maxBufferedBytes", 32 * 1024 * 1024),
+				config.getInt("bulkUpload.maxBufferedEntryBytes", 1024 * 1024),
+				config.getInt("bulkUpload.maxEntries", 10_000),
+				config.getLong("bulkUpload.maxBytes", 1024L * 1024 * 1024));
+		this.userIdCache = new UserIdCache(config.getInt("userCache.maxEntries", 10_000),
+				config.getLong("userCache.ttlMillis", 10L * 60 * 1000));
+		this.metadataStore = MetadataStore.create(config, userIdCache);
+		String spillFile = config.getString("receivedData.file", null);
+		this.receivedData = new ReceivedDataStore(config.getInt("receivedData.capacity", 1000),
+				spillFile != null && !spillFile.isEmpty() ? new File(spillFile) : null);
+		this.siteIndex = new SiteIndex(new File("html"));
+		this.siteIndex.start(config.getBoolean("siteIndex.watch", true));
+		this.projectReaper = new ProjectReaper(new File(config.getString("trash.dir", "trash")), metadataStore,
+				config.getInt("trash.parallelism", 4), config.getLong("trash.retryDelayMillis", 1000));
+		this.sessionStore = new SessionStore(config);
+		this.maxFormParameters = config.getInt("form.maxParameters", FormParser.DEFAULT_MAX_PARAMETERS);
+		this.maxFormBytes = config.getInt("form.maxBytes", FormParser.DEFAULT_MAX_BYTES);
+		this.accessLog = new AccessLog(new File(config.getString("accessLog.file", "logs/access.log")),
+				config.getInt("accessLog.bufferSize", 8192), config.getLong("accessLog.maxBytes", 10L * 1024 * 1024),
+				config.getInt("accessLog.maxFiles", 5));
 	}
 
 	public static final Map<String, String> MIME_TYPES = Map.of(".html", "text/html", ".css", "text/css", ".js",
 			"application/javascript", ".png", "image/png", ".jpg", "image/jpeg", ".gif", "image/gif", ".ico",
 			"image/x-icon");
 
-	public List<Map<String, String>> receivedData = new ArrayList<>();
+	public final ReceivedDataStore receivedData;
 	public static final Logger logger = Logger.getLogger(Server.class.getName());
 
-	private Consumer<String> logConsumer;
-
 	public void setLogConsumer(Consumer<String> logConsumer) {
-		this.logConsumer = logConsumer;
+		accessLog.setConsumer(logConsumer);
+	}
+
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+
+	public StaticFileCache getFileCache() {
+		return fileCache;
+	}
+
+	public SiteIndex getSiteIndex() {
+		return siteIndex;
+	}
+
+	public ProjectReaper getProjectReaper() {
+		return projectReaper;
+	}
+
+	public UserIdCache getUserIdCache() {
+		return userIdCache;
+	}
+
+	public SessionStore getSessionStore() {
+		return sessionStore;
+	}
+
+	public MetadataStore getMetadataStore() {
+		return metadataStore;
 	}
 
 	// Methods
 	private void logClientInfo(HttpExchange exchange, String email, String action) {
 		String clientIP = exchange.getRemoteAddress().getAddress().getHostAddress();
-		String logMessage = "Email: " + URLDecoder.decode(email, StandardCharsets.UTF_8) + " from IP: " + clientIP
-				+ " performed action: " + action;
-		logger.info(logMessage);
-		if (logConsumer != null) {
-			logConsumer.accept(logMessage);
-		}
+		accessLog.logAction(clientIP, email, action);
 	}
 
-	private void sendResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
+	void sendResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
 		exchange.getResponseHeaders().set("Content-Type", "text/plain");
 		exchange.sendResponseHeaders(statusCode, message.length());
 		OutputStream os = exchange.getResponseBody();
@@ -64,7 +131,11 @@ public class RequestHandlers {
 		os.close();
 	}
 
-	private String getMimeType(String filePath) {
+	private static String cacheKey(File file) {
+		return file.getPath().replace(File.separatorChar, '/');
+	}
+
+	static String getMimeType(String filePath) {
 		int lastDot = filePath.lastIndexOf('.');
 		if (lastDot != -1) {
 			String extension = filePath.substring(lastDot);
@@ -73,43 +144,19 @@ public class RequestHandlers {
 		return "application/octet-stream";
 	}
 
-	private Map<String, String> parseData(String data) {
-	    Map<String, String> result = new HashMap<>();
-	    String[] pairs = data.split("&");
-	    for (String pair : pairs) {
-	        String[] keyValue = pair.split("=");
-	        if (keyValue.length == 2) {
-	            String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
-	            String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-	            result.put(key, value);
-	        }
-	    }
-	    return result;
+	Map<String, String> parseData(String data) {
+		return FormParser.parse(data, maxFormParameters);
 	}
 
-	private Map<String, String> parseRequestBody(HttpExchange exchange) throws IOException {
-	    InputStream is = exchange.getRequestBody();
-	    StringBuilder sb = new StringBuilder();
-	    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-	        String line;
-	        while ((line = reader.readLine()) != null) {
-	            sb.append(line);
-	        }
-	    }
-	    String requestBody = sb.toString();
-	    System.out.println("Request Body: " + requestBody);
-	    return parseData(requestBody);
+	Map<String, String> parseRequestBody(HttpExchange exchange) throws IOException {
+		return parseData(FormParser.readBody(exchange.getRequestBody(), maxFormBytes));
 	}
 
 	public void handleRootRequest(HttpExchange exchange) throws IOException {
 		String method = exchange.getRequestMethod();
 		String uri = exchange.getRequestURI().toString();
 		String addressIP = exchange.getRemoteAddress().getAddress().getHostAddress();
-		String logMessage = "Request Method: " + method + ", URI: " + uri + ", IP_ADDRESS: " + addressIP;
-		logger.info(logMessage);
-		if (logConsumer != null) {
-			logConsumer.accept(logMessage);
-		}
+		accessLog.logRequest(addressIP, method, uri);
 		if ("GET".equalsIgnoreCase(method)) {
 			handleGetRequest(exchange, uri);
 		} else if ("POST".equalsIgnoreCase(method)) {
@@ -119,42 +166,13 @@ public class RequestHandlers {
 		}
 	}
 
-	private void handleGetRequest(HttpExchange exchange, String uri) throws IOException {
-		if ("/receivedData".equals(uri)) {
-			StringBuilder responseBuilder = new StringBuilder("<h1>Received POST Data</h1><ul>");
-			for (Map<String, String> dataMap : receivedData) {
-				responseBuilder.append("<li>").append(dataMap).append("</li>");
-			}
-			responseBuilder.append("</ul>");
-
-			String response = responseBuilder.toString();
-			exchange.getResponseHeaders().set("Content-Type", "text/html");
-			exchange.sendResponseHeaders(200, response.length());
-			OutputStream os = exchange.getResponseBody();
-			os.write(response.getBytes());
-			os.close();
+	void handleGetRequest(HttpExchange exchange, String uri) throws IOException {
+		if ("/receivedData".equals(exchange.getRequestURI().getPath())) {
+			handleReceivedDataRequest(exchange);
 		} else {
 			String filePath = "html" + uri;
-			File file = new File(filePath);
-
-			if (file.exists() && !file.isDirectory()) {
-				String mimeType = getMimeType(filePath);
-				String response;
-
-				if (mimeType.equals("text/html")) {
-					response = new String(Files.readAllBytes(Paths.get(filePath)));
-					response = response.replace("action=\"host\"", "action=\"" + server.getHostUrl() + "\"");
-				} else {
-					byte[] responseBytes = Files.readAllBytes(Paths.get(filePath));
-					response = new String(responseBytes);
-				}
-
-				exchange.getResponseHeaders().set("Content-Type", mimeType);
-				exchange.sendResponseHeaders(200, response.length());
-				OutputStream os = exchange.getResponseBody();
-				os.write(response.getBytes());
-				os.close();
-			} else {
+			// While the index is watched it answers misses without touching the disk
+			if ((siteIndex.isWatching() && !siteIndex.isFile(uri)) || !staticFileHandler.serve(exchange, filePath)) {
 				String notFoundMessage = "<h1>404 Not Found</h1>";
 				exchange.getResponseHeaders().set("Content-Type", "text/html");
 				exchange.sendResponseHeaders(404, notFoundMessage.length());
@@ -165,17 +183,59 @@ public class RequestHandlers {
 		}
 	}
 
-	private void handlePostRequest(HttpExchange exchange) throws IOException {
-		InputStream is = exchange.getRequestBody();
-		StringBuilder sb = new StringBuilder();
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-		String line;
-		while ((line = reader.readLine()) != null) {
-			sb.append(line);
+	// Streams one page of stored POST data; offset is the sequence number of the first record
+	private void handleReceivedDataRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
+		long offset = parseLong(queryParams.get("offset"), receivedData.getFirstSequence());
+		int limit = (int) Math.min(Math.max(parseLong(queryParams.get("limit"), 100), 1), 1000);
+		List<ReceivedDataStore.Record> records = receivedData.page(offset, limit);
+
+		exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+		exchange.sendResponseHeaders(200, 0);
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192)) {
+			writer.write("<h1>Received POST Data</h1><ul>");
+			for (ReceivedDataStore.Record record : records) {
+				writer.write("<li>");
+				writer.write(escapeHtml(record.getData().toString()));
+				writer.write("</li>");
+			}
+			writer.write("</ul>");
+			if (!records.isEmpty()) {
+				long next = records.get(records.size() - 1).getSequence() + 1;
+				if (next < receivedData.getNextSequence()) {
+					writer.write("<a href=\"/receivedData?offset=" + next + "&limit=" + limit + "\">Next</a>");
+				}
+			}
+		}
+	}
+
+	private static String escapeHtml(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 16);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				sb.append(c);
+			}
 		}
+		return sb.toString();
+	}
 
-		String requestBody = sb.toString();
-		Map<String, String> postData = parseData(requestBody);
+	private void handlePostRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> postData = parseRequestBody(exchange);
 		receivedData.add(postData);
 
 		String responseMessage = "Received POST data: " + postData;
@@ -187,20 +247,34 @@ public class RequestHandlers {
 		os.close();
 	}
 
+	public void handleMetricsRequest(HttpExchange exchange) throws IOException {
+		if ("GET".equals(exchange.getRequestMethod())) {
+			StringBuilder body = new StringBuilder(4096);
+			server.getMetrics().writePrometheus(body, server);
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		} else {
+			exchange.sendResponseHeaders(405, -1);
+		}
+	}
+
 	// Request Account
 	public void handleRegisterRequest(HttpExchange exchange) throws IOException {
 		Map<String, String> postData = parseRequestBody(exchange);
 		String email = postData.get("email");
-		String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
 
 		if ("POST".equals(exchange.getRequestMethod())) {
 			String password = postData.get("password");
 			String username = postData.get("username");
 
-			if (saveAccount(username, decodedEmail, password)) {
+			if (saveAccount(username, email, password)) {
 				createUserDirectory(username);
 				sendResponse(exchange, 200, "success");
-				logClientInfo(exchange, decodedEmail, "register");
+				logClientInfo(exchange, email, "register");
 			} else {
 				sendResponse(exchange, 400, "Registration failed: User already exists.");
 			}
@@ -212,14 +286,18 @@ public class RequestHandlers {
 	public void handleLoginRequest(HttpExchange exchange) throws IOException {
 		Map<String, String> postData = parseRequestBody(exchange);
 		String email = postData.get("email");
-		String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
 
 		if ("POST".equals(exchange.getRequestMethod())) {
 			String password = postData.get("password");
 
-			if (validateUser(decodedEmail, password)) {
+			if (validateUser(email, password)) {
+				// The body stays "success" for existing clients; the token travels in a header and a cookie
+				String username = getUserNameByEmail(email);
+				if (username != null) {
+					sessionStore.issue(exchange, sessionStore.create(username, email));
+				}
 				sendResponse(exchange, 200, "success");
-				logClientInfo(exchange, decodedEmail, "login");
+				logClientInfo(exchange, email, "login");
 			} else {
 				sendResponse(exchange, 401, "Invalid email or password.");
 			}
@@ -229,20 +307,26 @@ public class RequestHandlers {
 	}
 
 	public void handleLogoutRequest(HttpExchange exchange) throws IOException {
-		Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
 		String username = queryParams.get("username");
+		sessionStore.revoke(SessionStore.tokenOf(exchange));
+		sessionStore.clear(exchange);
 		logClientInfo(exchange, username, "logout");
 		sendResponse(exchange, 200, "Logout successful");
 	}
 
 	public void handleGetUserNameRequest(HttpExchange exchange) throws IOException {
 		if ("GET".equals(exchange.getRequestMethod())) {
-			Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
+			Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
 			String email = queryParams.get("email");
 
 			if (email != null) {
-				String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
-				String username = getUserNameByEmail(decodedEmail);
+				SessionStore.Session session = SessionStore.current();
+				if (session != null && !email.equals(session.getEmail())) {
+					sendResponse(exchange, 403, "Forbidden.");
+					return;
+				}
+				String username = session != null ? session.getUsername() : getUserNameByEmail(email);
 
 				if (username != null) {
 					sendResponse(exchange, 200, username);
@@ -258,14 +342,8 @@ public class RequestHandlers {
 	}
 
 	private String getUserNameByEmail(String email) {
-		try (Connection conn = DatabaseConnection.getConnection();
-				PreparedStatement stmt = conn.prepareStatement("SELECT UserName FROM user WHERE UserEmail = ?")) {
-			stmt.setString(1, email);
-			ResultSet rs = stmt.executeQuery();
-
-			if (rs.next()) {
-				return rs.getString("UserName");
-			}
+		try {
+			return metadataStore.findUserNameByEmail(email);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -273,14 +351,8 @@ public class RequestHandlers {
 	}
 
 	private boolean validateUser(String email, String password) {
-		try (Connection conn = DatabaseConnection.getConnection();
-				PreparedStatement stmt = conn
-						.prepareStatement("SELECT * FROM user WHERE UserEmail = ? AND UserPass = ?")) {
-			stmt.setString(1, email);
-			stmt.setString(2, password);
-			ResultSet rs = stmt.executeQuery();
-
-			return rs.next();
+		try {
+			return metadataStore.validateUser(email, password);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -288,22 +360,8 @@ public class RequestHandlers {
 	}
 
 	private boolean saveAccount(String username, String email, String password) {
-		try (Connection conn = DatabaseConnection.getConnection();
-				PreparedStatement checkStmt = conn.prepareStatement("SELECT * FROM user WHERE UserEmail = ?");
-				PreparedStatement insertStmt = conn
-						.prepareStatement("INSERT INTO user (UserName, UserEmail, UserPass) VALUES (?, ?, ?)")) {
-
-			checkStmt.setString(1, email);
-			ResultSet rs = checkStmt.executeQuery();
-			if (rs.next()) {
-				return false;
-			}
-
-			insertStmt.setString(1, username);
-			insertStmt.setString(2, email);
-			insertStmt.setString(3, password);
-			insertStmt.executeUpdate();
-			return true;
+		try {
+			return metadataStore.createUser(username, email, password);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -312,8 +370,8 @@ public class RequestHandlers {
 
 	private File createUserDirectory(String username) {
 		File userDir = new File("html/" + username);
-		if (!userDir.exists()) {
-			userDir.mkdir();
+		if (!siteIndex.isDirectory(username) && userDir.mkdir()) {
+			siteIndex.refresh(userDir);
 		}
 		return userDir;
 	}
@@ -325,23 +383,26 @@ public class RequestHandlers {
 			String username = postData.get("username");
 			String projectName = postData.get("projectName");
 			String email = postData.get("email");
-			String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
 
 			if (username == null || projectName == null) {
 				sendResponse(exchange, 400, "Missing username or projectName");
 				return;
 			}
-
-			File userDir = new File("html/" + username);
-			if (!userDir.exists()) {
-				userDir.mkdirs();
+			// The session filter only sees the query string; this handler takes the username from the body
+			SessionStore.Session session = SessionStore.current();
+			if (session != null && !username.equals(session.getUsername())) {
+				sendResponse(exchange, 403, "Forbidden.");
+				return;
 			}
 
-			File projectDir = new File(userDir, projectName);
-			if (!projectDir.exists()) {
-				projectDir.mkdirs();
+			File projectDir = new File("html/" + username, projectName);
+			if (projectReaper.isPending(username, projectName)) {
+				// The pending database delete would take the new project's records with it
+				sendResponse(exchange, 409, "A delete of this project is still pending.");
+			} else if (!siteIndex.isDirectory(username + "/" + projectName) && projectDir.mkdirs()) {
+				siteIndex.refresh(projectDir);
 				sendResponse(exchange, 200, "Project created successfully!");
-				logClientInfo(exchange, decodedEmail, "create project " + projectName);
+				logClientInfo(exchange, email, "create project " + projectName);
 			} else {
 				sendResponse(exchange, 409, "Project already exists.");
 			}
@@ -352,24 +413,13 @@ public class RequestHandlers {
 
 	public void handleListProjectsRequest(HttpExchange exchange) throws IOException {
 		if ("GET".equals(exchange.getRequestMethod())) {
-			Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
+			Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
 			String username = queryParams.get("username");
 
 			if (username != null) {
-				File userDir = new File("html/" + username);
-				if (userDir.exists() && userDir.isDirectory()) {
-					File[] directories = userDir.listFiles(File::isDirectory);
-					if (directories != null) {
-						List<String> projectNames = new ArrayList<>();
-						for (File dir : directories) {
-							projectNames.add(dir.getName());
-						}
-
-						String response = String.join(",", projectNames);
-						sendResponse(exchange, 200, response);
-					} else {
-						sendResponse(exchange, 404, "No projects found.");
-					}
+				List<String> projectNames = siteIndex.list(username, true);
+				if (projectNames != null) {
+					sendResponse(exchange, 200, String.join(",", projectNames));
 				} else {
 					sendResponse(exchange, 404, "User directory not found.");
 				}
@@ -382,33 +432,36 @@ public class RequestHandlers {
 	}
 
 	public void handleUploadRequest(HttpExchange exchange) throws IOException {
-		Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
 		String username = queryParams.get("username");
 		String projectName = queryParams.get("project");
-		String fileName = queryParams.get("filename");
+		String fileName = BulkUploader.normalize(queryParams.getOrDefault("filename", ""));
 		String email = queryParams.get("email");
-		String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
-		long fileSize = Long.parseLong(queryParams.get("fileSize"));
+		long expectedSize = parseLong(queryParams.get("fileSize"), -1);
 
 		if ("POST".equals(exchange.getRequestMethod())) {
-			File projectDir = new File("html/" + username + "/" + projectName);
-			if (!projectDir.exists()) {
-				projectDir.mkdirs();
+			if (!isPathSegment(username) || !isPathSegment(projectName) || fileName == null) {
+				sendResponse(exchange, 400, "Missing or invalid username, project or filename parameter.");
+				return;
 			}
+			if (!siteIndex.isDirectory(username + "/" + projectName)) {
+				sendResponse(exchange, 404, "Project not found on the server.");
+				return;
+			}
+			if (expectedSize > uploadManager.getMaxFileSize()) {
+				sendResponse(exchange, 413, "File is larger than " + uploadManager.getMaxFileSize() + " bytes.");
+				return;
+			}
+			File uploadedFile = new File("html/" + username + "/" + projectName, fileName);
 
-			File uploadedFile = new File(projectDir, fileName);
-
-			try (InputStream is = exchange.getRequestBody();
-					FileOutputStream fos = new FileOutputStream(uploadedFile)) {
-				byte[] buffer = new byte[4096];
-				int bytesRead;
-				while ((bytesRead = is.read(buffer)) != -1) {
-					fos.write(buffer, 0, bytesRead);
-				}
-				saveFileToDatabase(username, projectName, fileName, fileSize);
+			try (InputStream is = exchange.getRequestBody()) {
+				long bytesWritten = uploadManager.receiveFile(is, uploadedFile, expectedSize);
+				fileCache.invalidate(cacheKey(uploadedFile));
+				siteIndex.refresh(uploadedFile);
+				saveFileToDatabase(username, projectName, fileName, bytesWritten);
 
 				sendResponse(exchange, 200, "File uploaded successfully!");
-				logClientInfo(exchange, decodedEmail, "upload " + fileName + " to " + projectName);
+				logClientInfo(exchange, email, "upload " + fileName + " to " + projectName);
 			} catch (IOException e) {
 				sendResponse(exchange, 500, "File upload failed.");
 			}
@@ -417,65 +470,244 @@ public class RequestHandlers {
 		}
 	}
 
+	public void handleUploadSessionRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
+
+		if ("POST".equals(exchange.getRequestMethod())) {
+			String username = queryParams.get("username");
+			String projectName = queryParams.get("project");
+			String fileName = BulkUploader.normalize(queryParams.getOrDefault("filename", ""));
+			long fileSize = parseLong(queryParams.get("fileSize"), -1);
+
+			if (!isPathSegment(username) || !isPathSegment(projectName) || fileName == null || fileSize < 0) {
+				sendResponse(exchange, 400, "Missing or invalid username, project, filename or fileSize parameter.");
+				return;
+			}
+			if (!siteIndex.isDirectory(username + "/" + projectName)) {
+				sendResponse(exchange, 404, "Project not found on the server.");
+				return;
+			}
+			if (fileSize > uploadManager.getMaxFileSize()) {
+				sendResponse(exchange, 413, "File is larger than " + uploadManager.getMaxFileSize() + " bytes.");
+				return;
+			}
+			UploadManager.Session session = uploadManager.createSession(username, projectName, fileName, fileSize);
+			sendResponse(exchange, 200, session.getId());
+		} else if ("DELETE".equals(exchange.getRequestMethod())) {
+			UploadManager.Session session = uploadManager.getSession(queryParams.get("session"));
+			if (session != null && !ownsUpload(session)) {
+				sendResponse(exchange, 403, "Forbidden.");
+			} else if (session != null) {
+				uploadManager.abortSession(session);
+				sendResponse(exchange, 200, "Upload cancelled.");
+			} else {
+				sendResponse(exchange, 404, "Upload session not found.");
+			}
+		} else {
+			exchange.sendResponseHeaders(405, -1);
+		}
+	}
+
+	public void handleUploadChunkRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
+		UploadManager.Session session = uploadManager.getSession(queryParams.get("session"));
+		String method = exchange.getRequestMethod();
+
+		if (session == null) {
+			sendResponse(exchange, 404, "Upload session not found.");
+		} else if (!ownsUpload(session)) {
+			sendResponse(exchange, 403, "Forbidden.");
+		} else if ("GET".equals(method)) {
+			// Lets a client that lost its connection find out where to resume
+			sendResponse(exchange, 200, Long.toString(session.getOffset()));
+		} else if ("PUT".equals(method) || "POST".equals(method)) {
+			long offset = parseLong(queryParams.get("offset"), -1);
+			String email = queryParams.get("email");
+
+			try (InputStream is = exchange.getRequestBody()) {
+				long newOffset = uploadManager.writeChunk(session, offset, is, queryParams.get("checksum"));
+				if (newOffset < session.getFileSize()) {
+					sendResponse(exchange, 200, Long.toString(newOffset));
+					return;
+				}
+
+				File uploadedFile = uploadManager.completeSession(session,
+						new File("html/" + session.getUsername() + "/" + session.getProjectName(), session.getFileName()));
+				fileCache.invalidate(cacheKey(uploadedFile));
+				siteIndex.refresh(uploadedFile);
+				saveFileToDatabase(session.getUsername(), session.getProjectName(), session.getFileName(),
+						uploadedFile.length());
+
+				sendResponse(exchange, 200, "complete");
+				if (email != null) {
+					logClientInfo(exchange, email,
+							"upload " + session.getFileName() + " to " + session.getProjectName());
+				}
+			} catch (UploadManager.UploadException e) {
+				sendResponse(exchange, e.getStatusCode(), e.getMessage());
+			} catch (IOException e) {
+				sendResponse(exchange, 500, "Chunk upload failed.");
+			}
+		} else {
+			exchange.sendResponseHeaders(405, -1);
+		}
+	}
+
+	// Body is a zip, tar or gzipped tar (by Content-Type, or format=zip|tar|tgz) or a multipart/form-data
+	// batch. Replies with one JSON result per file; all written files are recorded in one transaction
+	public void handleBulkUploadRequest(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
+		String username = queryParams.get("username");
+		String projectName = queryParams.get("project");
+		String email = queryParams.get("email");
+		if (username == null || projectName == null) {
+			sendResponse(exchange, 400, "Missing username or project parameter.");
+			return;
+		}
+		if (!siteIndex.isDirectory(username + "/" + projectName)) {
+			sendResponse(exchange, 404, "Project not found on the server.");
+			return;
+		}
+		try {
+			// Checked even with a session, which can outlive the account it was issued to
+			if (metadataStore.findUserId(username) == null) {
+				sendResponse(exchange, 404, "User not found.");
+				return;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			sendResponse(exchange, 500, "Database error.");
+			return;
+		}
+
+		File projectDir = new File("html/" + username + "/" + projectName);
+		List<BulkUploader.Result> results = new ArrayList<>();
+		int status = 200;
+		String error = null;
+		try (InputStream is = exchange.getRequestBody()) {
+			ArchiveReader archive = ArchiveReader.open(queryParams.get("format"),
+					exchange.getRequestHeaders().getFirst("Content-Type"), is);
+			if (archive == null) {
+				sendResponse(exchange, 415, "Expected a zip, tar or tgz archive or a multipart/form-data body.");
+				return;
+			}
+			bulkUploader.extract(archive, projectDir, results);
+		} catch (UploadManager.UploadException e) {
+			status = e.getStatusCode();
+			error = e.getMessage();
+		} catch (IOException e) {
+			status = 400;
+			error = "Archive could not be read: " + e.getMessage();
+		}
+
+		// Whatever reached the disk is recorded, even when the archive was cut short
+		List<MetadataStore.FileRecord> written = new ArrayList<>(results.size());
+		for (BulkUploader.Result result : results) {
+			if (result.getError() == null) {
+				written.add(new MetadataStore.FileRecord(result.getName(), result.getSize()));
+				fileCache.invalidate(cacheKey(new File(projectDir, result.getName())));
+			}
+		}
+		siteIndex.refresh(projectDir);
+		try {
+			metadataStore.saveFiles(username, projectName, written);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			status = 500;
+			error = "Files were written but could not be recorded in the database.";
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, 0);
+		try (JsonWriter json = new JsonWriter(new BufferedWriter(
+				new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192))) {
+			json.beginObject();
+			json.name("saved").value(written.size());
+			json.name("failed").value(results.size() - written.size());
+			json.name("error").value(error);
+			json.name("files").beginArray();
+			for (BulkUploader.Result result : results) {
+				json.beginObject();
+				json.name("name").value(result.getName());
+				if (result.getError() == null) {
+					json.name("size").value(result.getSize());
+				} else {
+					json.name("error").value(result.getError());
+				}
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		}
+		if (!written.isEmpty()) {
+			logClientInfo(exchange, email, "upload " + written.size() + " files to " + projectName);
+		}
+	}
+
+	// The upload session id is in the query string instead of a username, so the session filter cannot
+	// check it; a logged-in user may only touch uploads started under their own name
+	private static boolean ownsUpload(UploadManager.Session upload) {
+		SessionStore.Session session = SessionStore.current();
+		return session == null || session.getUsername().equals(upload.getUsername());
+	}
+
+	// User and project names become a single directory under html/, so they may not contain a path
+	private static boolean isPathSegment(String name) {
+		return name != null && name.equals(BulkUploader.normalize(name)) && name.indexOf('/') < 0;
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	// Without a limit the whole project is returned as a bare JSON array, as before pagination.
+	// With limit (at most 1000) the reply is {"files":[...],"nextCursor":...}; pass nextCursor back
+	// as cursor for the following page. sort is name, time or size and order is asc or desc.
 	public void handleListFilesInProjectRequest(HttpExchange exchange) throws IOException {
 		if ("GET".equals(exchange.getRequestMethod())) {
-			Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
+			Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
 			String username = queryParams.get("username");
 			String projectName = queryParams.get("projectName");
 
 			if (username != null && projectName != null) {
-				try (Connection conn = DatabaseConnection.getConnection()) {
-					String sqlUserId = "SELECT UserID FROM user WHERE UserName = ?";
-					int userId;
-
-					try (PreparedStatement stmtUser = conn.prepareStatement(sqlUserId)) {
-						stmtUser.setString(1, username);
-						try (ResultSet rsUser = stmtUser.executeQuery()) {
-							if (rsUser.next()) {
-								userId = rsUser.getInt("UserID");
-							} else {
-								sendResponse(exchange, 404, "User not found.");
-								return;
-							}
-						}
-					}
+				int limit = (int) Math.min(Math.max(parseLong(queryParams.get("limit"), 0), 0), 1000);
+				FileQuery query;
+				try {
+					query = FileQuery.parse(queryParams.get("sort"), queryParams.get("order"),
+							queryParams.get("cursor"), limit);
+				} catch (IllegalArgumentException e) {
+					sendResponse(exchange, 400, e.getMessage());
+					return;
+				}
 
-					String sqlFileInfo = "SELECT FileName, FileSize, TimeUpload FROM file WHERE UserID = ? AND ProjectName = ?";
-					try (PreparedStatement stmtFile = conn.prepareStatement(sqlFileInfo)) {
-						stmtFile.setInt(1, userId);
-						stmtFile.setString(2, projectName);
-
-						try (ResultSet rsFile = stmtFile.executeQuery()) {
-							StringBuilder jsonResponse = new StringBuilder();
-							jsonResponse.append("[");
-
-							boolean first = true;
-							while (rsFile.next()) {
-								if (!first) {
-									jsonResponse.append(",");
-								}
-								first = false;
-
-								String fileName = rsFile.getString("FileName");
-								long fileSize = rsFile.getLong("FileSize");
-								Timestamp timeUpload = rsFile.getTimestamp("TimeUpload");
-								long elapsedTimeMillis = System.currentTimeMillis() - timeUpload.getTime();
-								String elapsedTime = formatElapsedTime(elapsedTimeMillis);
-
-								jsonResponse.append("{").append("\"fileName\":\"").append(fileName).append("\",")
-										.append("\"fileSize\":\"").append(formatFileSize(fileSize)).append("\",")
-										.append("\"timeUpload\":\"").append(timeUpload.toString()).append("\",")
-										.append("\"elapsedTime\":\"").append(elapsedTime).append("\"").append("}");
-							}
-
-							jsonResponse.append("]");
-							sendResponse(exchange, 200, jsonResponse.toString());
-						}
+				FileListResponse response = new FileListResponse(exchange, query);
+				try {
+					// One extra row tells whether another page follows
+					if (!metadataStore.listFiles(username, projectName, query.withLimit(limit > 0 ? limit + 1 : 0),
+							response)) {
+						sendResponse(exchange, 404, "User not found.");
+						return;
 					}
-
+					response.finish();
 				} catch (SQLException e) {
 					e.printStackTrace();
-					sendResponse(exchange, 500, "Database error");
+					if (response.isStarted()) {
+						// Headers are gone; closing without the closing bracket leaves the client an invalid document
+						exchange.close();
+					} else {
+						sendResponse(exchange, 500, "Database error");
+					}
 				}
 			} else {
 				sendResponse(exchange, 400, "Missing username or projectName parameter.");
@@ -485,7 +717,76 @@ public class RequestHandlers {
 		}
 	}
 
-	private String formatElapsedTime(long elapsedTimeMillis) {
+	// Writes rows as the store produces them; the response starts with the first row so a failing
+	// query can still be answered with a 500
+	private class FileListResponse implements MetadataStore.FileVisitor {
+		private final HttpExchange exchange;
+		private final FileQuery query;
+		private final long now = System.currentTimeMillis();
+		private JsonWriter json;
+		private int count;
+		private MetadataStore.FileInfo last;
+		private boolean hasMore;
+
+		FileListResponse(HttpExchange exchange, FileQuery query) {
+			this.exchange = exchange;
+			this.query = query;
+		}
+
+		@Override
+		public void visit(MetadataStore.FileInfo file) throws IOException {
+			if (query.getLimit() > 0 && count == query.getLimit()) {
+				hasMore = true;
+				return;
+			}
+			start();
+			writeFileJson(json, file, now);
+			last = file;
+			count++;
+		}
+
+		boolean isStarted() {
+			return json != null;
+		}
+
+		void finish() throws IOException {
+			start();
+			json.endArray();
+			if (query.getLimit() > 0) {
+				json.name("nextCursor");
+				json.value(hasMore ? query.cursorAfter(last) : null);
+				json.endObject();
+			}
+			json.close();
+		}
+
+		private void start() throws IOException {
+			if (json != null) {
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			json = new JsonWriter(new BufferedWriter(
+					new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192));
+			if (query.getLimit() > 0) {
+				json.beginObject();
+				json.name("files");
+			}
+			json.beginArray();
+		}
+	}
+
+	static void writeFileJson(JsonWriter json, MetadataStore.FileInfo file, long now) throws IOException {
+		Timestamp timeUpload = file.getTimeUpload();
+		json.beginObject();
+		json.name("fileName").value(file.getFileName());
+		json.name("fileSize").value(formatFileSize(file.getFileSize()));
+		json.name("timeUpload").value(timeUpload.toString());
+		json.name("elapsedTime").value(formatElapsedTime(now - timeUpload.getTime()));
+		json.endObject();
+	}
+
+	private static String formatElapsedTime(long elapsedTimeMillis) {
 	    long seconds = (elapsedTimeMillis / 1000) % 60;
 	    long minutes = (elapsedTimeMillis / (1000 * 60)) % 60;
 	    long hours = (elapsedTimeMillis / (1000 * 60 * 60)) % 24;
@@ -497,7 +798,7 @@ public class RequestHandlers {
 	    else return seconds + " seconds ago";
 	}
 
-	private String formatFileSize(long fileSize) {
+	private static String formatFileSize(long fileSize) {
 	    if (fileSize >= 1024 * 1024) {
 	        return (fileSize / (1024 * 1024)) + " MB";
 	    } else if (fileSize >= 1024) {
@@ -509,25 +810,26 @@ public class RequestHandlers {
 
 	public void handleDeleteFileRequest(HttpExchange exchange) throws IOException {
 		if ("DELETE".equals(exchange.getRequestMethod())) {
-			String query = exchange.getRequestURI().getQuery();
+			String query = exchange.getRequestURI().getRawQuery();
 			Map<String, String> queryParams = parseData(query);
 			String username = queryParams.get("username");
 			String projectName = queryParams.get("projectName");
 			String fileName = queryParams.get("fileName");
 			String email = queryParams.get("email");
-			String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
 
 			if (username != null && projectName != null && fileName != null) {
 				File projectDir = new File("html/" + username + "/" + projectName);
 				File fileToDelete = new File(projectDir, fileName);
 
-				if (fileToDelete.exists() && fileToDelete.isFile()) {
+				if (siteIndex.isFile(username + "/" + projectName + "/" + fileName)) {
 					boolean deleted = fileToDelete.delete();
+					fileCache.invalidate(cacheKey(fileToDelete));
+					siteIndex.remove(fileToDelete);
 					if (deleted) {
 						boolean dbDeleted = deleteFileFromDatabase(username, projectName, fileName);
 						if (dbDeleted) {
 							sendResponse(exchange, 200, "File deleted successfully.");
-							logClientInfo(exchange, decodedEmail, "delete " + fileName + " from " + projectName);
+							logClientInfo(exchange, email, "delete " + fileName + " from " + projectName);
 						} else {
 							sendResponse(exchange, 500, "Failed to delete file from database.");
 						}
@@ -547,33 +849,49 @@ public class RequestHandlers {
 
 	public void handleDeleteProjectRequest(HttpExchange exchange) throws IOException {
 	    if ("DELETE".equals(exchange.getRequestMethod())) {
-	        String query = exchange.getRequestURI().getQuery();
+	        String query = exchange.getRequestURI().getRawQuery();
 	        Map<String, String> queryParams = parseData(query);
 	        String username = queryParams.get("username");
 	        String projectName = queryParams.get("projectName");
 			String email = queryParams.get("email");
-			String decodedEmail = URLDecoder.decode(email, StandardCharsets.UTF_8);
 
 	        if (username != null && projectName != null) {
-	            boolean projectExists = checkProjectExists(username, projectName);
-
-	            if (projectExists) {
-	                boolean dbDeleted = deleteProjectFromDatabase(username, projectName);
-	                if (!dbDeleted) {
-	                    sendResponse(exchange, 500, "Failed to delete project in database.");
+	            // The project is renamed into the trash first, so it disappears at once however large it is;
+	            // the files are deleted by the reaper after the response has been sent
+	            File projectDir = new File("html/" + username + "/" + projectName);
+	            ProjectReaper.Entry trashed = null;
+	            if (siteIndex.isDirectory(username + "/" + projectName)) {
+	                long moveStart = System.nanoTime();
+	                try {
+	                    trashed = projectReaper.moveToTrash(username, projectName, projectDir);
+	                } catch (IOException e) {
+	                    logger.warning("Could not move " + projectDir + " to the trash: " + e);
+	                    sendResponse(exchange, 500, "Failed to delete project files.");
 	                    return;
+	                } finally {
+	                    ServerMetrics.recordDiskTime(System.nanoTime() - moveStart);
 	                }
 	            }
 
-	            File projectDir = new File("html/" + username + "/" + projectName);
-	            if (projectDir.exists() && projectDir.isDirectory()) {
-	                boolean deleted = deleteDirectory(projectDir);
-	                if (deleted) {
-	                    sendResponse(exchange, 200, "Project deleted successfully.");
-	                    logClientInfo(exchange, decodedEmail, "delete project " + projectName);
-	                } else {
-	                    sendResponse(exchange, 500, "Failed to delete project files.");
+	            // One DELETE whether or not the project has file records; only a database error undoes the move
+	            try {
+	                metadataStore.deleteProject(username, projectName);
+	            } catch (SQLException e) {
+	                e.printStackTrace();
+	                if (trashed != null) {
+	                    projectReaper.restore(trashed);
+	                    siteIndex.refresh(projectDir);
 	                }
+	                sendResponse(exchange, 500, "Failed to delete project in database.");
+	                return;
+	            }
+
+	            if (trashed != null) {
+	                projectReaper.commit(trashed);
+	                fileCache.invalidatePrefix(cacheKey(projectDir));
+	                siteIndex.remove(projectDir);
+	                sendResponse(exchange, 200, "Project deleted successfully.");
+	                logClientInfo(exchange, email, "delete project " + projectName);
 	            } else {
 	                sendResponse(exchange, 404, "Project not found on the server.");
 	            }
@@ -586,177 +904,38 @@ public class RequestHandlers {
 	}
 
 	private void saveFileToDatabase(String username, String projectName, String fileName, long fileSize) {
-	    String sqlUserId = "SELECT UserID FROM user WHERE UserName = ?";
-	    String sqlCheckFile = "SELECT FileID FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
-	    String sqlUpdateFile = "UPDATE file SET FileSize = ?, TimeUpload = NOW() WHERE FileID = ?";
-	    String sqlInsertFile = "INSERT INTO file (FileName, FileSize, TimeUpload, ProjectName, UserID) VALUES (?, ?, NOW(), ?, ?)";
-
-	    try (Connection conn = DatabaseConnection.getConnection()) {
-	        try (PreparedStatement stmtUserId = conn.prepareStatement(sqlUserId)) {
-	            stmtUserId.setString(1, username);
-	            ResultSet rs = stmtUserId.executeQuery();
-
-	            if (rs.next()) {
-	                int userId = rs.getInt("UserID");
-
-	                try (PreparedStatement stmtCheckFile = conn.prepareStatement(sqlCheckFile)) {
-	                    stmtCheckFile.setString(1, fileName);
-	                    stmtCheckFile.setString(2, projectName);
-	                    stmtCheckFile.setInt(3, userId);
-	                    ResultSet rsFile = stmtCheckFile.executeQuery();
-
-	                    if (rsFile.next()) {
-	                        int fileId = rsFile.getInt("FileID");
-	                        try (PreparedStatement stmtUpdateFile = conn.prepareStatement(sqlUpdateFile)) {
-	                            stmtUpdateFile.setLong(1, fileSize);
-	                            stmtUpdateFile.setInt(2, fileId);
-	                            stmtUpdateFile.executeUpdate();
-	                        }
-	                    } else {
-	                        try (PreparedStatement stmtInsertFile = conn.prepareStatement(sqlInsertFile)) {
-	                            stmtInsertFile.setString(1, fileName);
-	                            stmtInsertFile.setLong(2, fileSize);
-	                            stmtInsertFile.setString(3, projectName);
-	                            stmtInsertFile.setInt(4, userId);
-	                            stmtInsertFile.executeUpdate();
-	                        }
-	                    }
-	                }
-	            }
-	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
-	    }
+		try {
+			metadataStore.saveFile(username, projectName, fileName, fileSize);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private boolean deleteFileFromDatabase(String username, String projectName, String fileName) {
-		String sqlUserId = "SELECT UserID FROM user WHERE UserName = ?";
-		String sqlDeleteFile = "DELETE FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
-
-		try (Connection conn = DatabaseConnection.getConnection()) {
-			try (PreparedStatement stmtUserId = conn.prepareStatement(sqlUserId)) {
-				stmtUserId.setString(1, username);
-				ResultSet rs = stmtUserId.executeQuery();
-
-				if (rs.next()) {
-					int userId = rs.getInt("UserID");
-
-					try (PreparedStatement stmtDeleteFile = conn.prepareStatement(sqlDeleteFile)) {
-						stmtDeleteFile.setString(1, fileName);
-						stmtDeleteFile.setString(2, projectName);
-						stmtDeleteFile.setInt(3, userId);
-						int rowsAffected = stmtDeleteFile.executeUpdate();
-
-						return rowsAffected > 0;
-					}
-				}
-			}
+		try {
+			return metadataStore.deleteFile(username, projectName, fileName);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return false;
 	}
 
-	private boolean deleteDirectory(File directory) {
-		File[] files = directory.listFiles();
-		if (files != null) {
-			for (File file : files) {
-				if (file.isDirectory()) {
-					deleteDirectory(file);
-				}
-				file.delete();
-			}
-		}
-		return directory.delete();
-	}
-	
-	private boolean checkProjectExists(String username, String projectName) {
-	    String sqlUserId = "SELECT UserID FROM user WHERE UserName = ?";
-	    String sqlCheckProject = "SELECT COUNT(*) FROM file WHERE ProjectName = ? AND UserID = ?";
-
-	    try (Connection conn = DatabaseConnection.getConnection()) {
-	        try (PreparedStatement stmtUserId = conn.prepareStatement(sqlUserId)) {
-	            stmtUserId.setString(1, username);
-	            ResultSet rs = stmtUserId.executeQuery();
-
-	            if (rs.next()) {
-	                int userId = rs.getInt("UserID");
-
-	                try (PreparedStatement stmtCheckProject = conn.prepareStatement(sqlCheckProject)) {
-	                    stmtCheckProject.setString(1, projectName);
-	                    stmtCheckProject.setInt(2, userId);
-	                    ResultSet projectResult = stmtCheckProject.executeQuery();
-
-	                    if (projectResult.next()) {
-	                        return projectResult.getInt(1) > 0;
-	                    }
-	                }
-	            }
-	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
-	    }
-	    return false;
-	}
-
-	private boolean deleteProjectFromDatabase(String username, String projectName) {
-		String sqlUserId = "SELECT UserID FROM user WHERE UserName = ?";
-		String sqlDeleteProject = "DELETE FROM file WHERE ProjectName = ? AND UserID = ?";
-
-		try (Connection conn = DatabaseConnection.getConnection()) {
-			try (PreparedStatement stmtUserId = conn.prepareStatement(sqlUserId)) {
-				stmtUserId.setString(1, username);
-				ResultSet rs = stmtUserId.executeQuery();
-
-				if (rs.next()) {
-					int userId = rs.getInt("UserID");
-
-					try (PreparedStatement stmtDeleteProject = conn.prepareStatement(sqlDeleteProject)) {
-						stmtDeleteProject.setString(1, projectName);
-						stmtDeleteProject.setInt(2, userId);
-						int rowsAffected = stmtDeleteProject.executeUpdate();
+	public void handleCheckFileExistenceRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> queryParams = parseData(exchange.getRequestURI().getRawQuery());
+		String username = queryParams.get("username");
+		String projectName = queryParams.get("project");
+		String fileName = queryParams.get("filename");
 
-						return rowsAffected > 0;
-					}
-				}
+		try {
+			Boolean exists = metadataStore.fileExists(username, projectName, fileName);
+			if (exists == null) {
+				sendResponse(exchange, 404, "User not found.");
+			} else {
+				sendResponse(exchange, 200, exists ? "exists" : "not exists");
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
+			sendResponse(exchange, 500, "Database error.");
 		}
-		return false;
-	}
-	
-	public void handleCheckFileExistenceRequest(HttpExchange exchange) throws IOException {
-	    Map<String, String> queryParams = parseData(exchange.getRequestURI().getQuery());
-	    String username = queryParams.get("username");
-	    String projectName = queryParams.get("project");
-	    String fileName = queryParams.get("filename");
-
-	    String sqlCheckFile = "SELECT FileID FROM file WHERE FileName = ? AND ProjectName = ? AND UserID = ?";
-	    try (Connection conn = DatabaseConnection.getConnection()) {
-	        try (PreparedStatement stmtUserId = conn.prepareStatement("SELECT UserID FROM user WHERE UserName = ?")) {
-	            stmtUserId.setString(1, username);
-	            ResultSet rsUser = stmtUserId.executeQuery();
-
-	            if (rsUser.next()) {
-	                int userId = rsUser.getInt("UserID");
-	                try (PreparedStatement stmtCheckFile = conn.prepareStatement(sqlCheckFile)) {
-	                    stmtCheckFile.setString(1, fileName);
-	                    stmtCheckFile.setString(2, projectName);
-	                    stmtCheckFile.setInt(3, userId);
-	                    ResultSet rsFile = stmtCheckFile.executeQuery();
-
-	                    if (rsFile.next()) {
-	                        sendResponse(exchange, 200, "exists");
-	                    } else {
-	                        sendResponse(exchange, 200, "not exists");
-	                    }
-	                }
-	            }
-	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
-	        sendResponse(exchange, 500, "Database error.");
-	    }
 	}
 }
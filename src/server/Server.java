@@ -1,26 +1,72 @@
 package server;
 
 import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsServer;
-import javax.net.ssl.*;
-import java.io.*;
+import java.io.IOException;
+import java.net.BindException;
 import java.net.InetSocketAddress;
-import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Server {
 
-	private HttpServer server;
-	private boolean isRunning = false;
+	// Transport under the routes: the JDK's HttpServer, or the selector-based NioHttpServer
+	public enum Engine {
+		JDK, NIO;
+
+		public static Engine fromString(String value, Engine defaultEngine) {
+			if (value != null) {
+				for (Engine engine : values()) {
+					if (engine.name().equalsIgnoreCase(value.trim())) {
+						return engine;
+					}
+				}
+			}
+			return defaultEngine;
+		}
+	}
+
+	private volatile HttpServer server;
+	private volatile boolean isRunning = false;
 	private int port = 8000;
 	private String host = "localhost";
 	public boolean useSSL = false;
 	private ServerContextSetup contextSetup;
 	private final RequestHandlers requestHandlers;
+	private final ServerConfig config;
+	private ServerExecutor.Mode executionMode;
+	private Engine engine;
+	private int maxThreads;
+	private int queueCapacity;
+	private volatile ServerExecutor executor;
+	// Listeners that have stopped accepting and are finishing their exchanges
+	private final List<ListenerDrain> drains = new CopyOnWriteArrayList<>();
+	private final long drainTimeoutMillis;
+	// Created by the first HTTPS start and kept across restarts so TLS sessions stay resumable
+	private TlsManager tlsManager;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final AdmissionControl admissionControl;
 
 	public Server() {
+		this(ServerConfig.load(ServerConfig.DEFAULT_FILE));
+	}
+
+	public Server(ServerConfig config) {
+		this.config = config;
+		this.executionMode = ServerExecutor.Mode.fromString(config.getString("executor.mode", null),
+				ServerExecutor.Mode.VIRTUAL);
+		this.maxThreads = config.getInt("executor.maxThreads", Runtime.getRuntime().availableProcessors() * 4);
+		this.queueCapacity = config.getInt("executor.queueCapacity", 256);
+		this.engine = Engine.fromString(config.getString("server.engine", null), Engine.JDK);
+		this.drainTimeoutMillis = config.getLong("shutdown.drainTimeoutMillis", 30_000);
+		DatabaseConnection.configure(config);
 		this.requestHandlers = new RequestHandlers(this);
-		this.contextSetup = new ServerContextSetup(requestHandlers);
+		this.admissionControl = new AdmissionControl(config);
+		this.contextSetup = new ServerContextSetup(requestHandlers, metrics, admissionControl);
+	}
+
+	public ServerConfig getConfig() {
+		return config;
 	}
 
 	public void setPort(int port) {
@@ -51,51 +97,235 @@ public class Server {
 		this.useSSL = enableSSL;
 	}
 
-	public void startServer() throws Exception {
+	public void setExecutionMode(ServerExecutor.Mode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	public ServerExecutor.Mode getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	// The HttpServer currently listening, or null when stopped
+	public HttpServer getListener() {
+		return isRunning ? server : null;
+	}
+
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public int getActiveThreadCount() {
+		ServerExecutor current = executor;
+		return current != null ? current.getActiveCount() : 0;
+	}
+
+	public int getQueueDepth() {
+		ServerExecutor current = executor;
+		return current != null ? current.getQueueDepth() : 0;
+	}
+
+	public ServerExecutor getExecutor() {
+		return executor;
+	}
+
+	public boolean isDraining() {
+		return !drains.isEmpty();
+	}
+
+	// Exchanges still running on listeners that are being drained
+	public int getDrainingExchangeCount() {
+		int remaining = 0;
+		for (ListenerDrain drain : drains) {
+			remaining += drain.getRemaining();
+		}
+		return remaining;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	// Null until the server has been started with SSL
+	public TlsManager getTlsManager() {
+		return tlsManager;
+	}
+
+	// Null when the in-memory metadata store is used and no database is involved
+	public ConnectionPool getConnectionPool() {
+		return requestHandlers.getMetadataStore() instanceof MySqlMetadataStore ? DatabaseConnection.getPool() : null;
+	}
+
+	public synchronized void startServer() throws Exception {
 		if (isRunning) {
 			System.out.println("Server is already running.");
 			return;
 		}
-		InetSocketAddress address = new InetSocketAddress(host, port);
-		server = useSSL ? createHttpsServer(address) : HttpServer.create(address, 0);
-		contextSetup.setupContexts(server);
-		server.setExecutor(null);
-		server.start();
+		startListener(bindListener(new InetSocketAddress(host, port)));
+		System.out.println("Server started on " + host + ":" + port + " (" + (server instanceof NioHttpServer ? "NIO" : "JDK")
+				+ " engine, " + executionMode + " executor)");
+	}
+
+	private void startListener(HttpServer listener) {
+		contextSetup.setupContexts(listener);
+		// Cached HTML embeds the host URL, which may have changed since the last start
+		requestHandlers.getFileCache().clear();
+		ServerExecutor listenerExecutor = new ServerExecutor(executionMode, maxThreads, queueCapacity,
+				admissionControl);
+		listener.setExecutor(listenerExecutor);
+		listener.start();
+		server = listener;
+		executor = listenerExecutor;
 		isRunning = true;
-		System.out.println("Server started on " + host + ":" + port);
 	}
 
-	private HttpsServer createHttpsServer(InetSocketAddress address) throws Exception {
-		HttpsServer httpsServer = HttpsServer.create(address, 0);
-		SSLContext sslContext = SSLContext.getInstance("TLS");
-		char[] password = "123456".toCharArray();
+	// The port may still be held for a moment by a listener that was just told to stop
+	private HttpServer bindListener(InetSocketAddress address) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				return createListener(address);
+			} catch (BindException e) {
+				if (System.currentTimeMillis() >= deadline || drains.isEmpty()) {
+					throw e;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
 
-		KeyStore ks = KeyStore.getInstance("JKS");
-		try (FileInputStream fis = new FileInputStream("path/to/keystore.jks")) {
-			ks.load(fis, password);
+	private HttpServer createListener(InetSocketAddress address) throws Exception {
+		if (useSSL) {
+			if (engine == Engine.NIO) {
+				RequestHandlers.logger.warning("The NIO engine has no TLS support yet, using the JDK engine for HTTPS");
+			}
+			return createHttpsServer(address);
 		}
+		if (engine == Engine.NIO) {
+			return createNioListener(address);
+		}
+		return HttpServer.create(address, 0);
+	}
 
-		KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-		kmf.init(ks, password);
-		sslContext.init(kmf.getKeyManagers(), null, null);
-		httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+	// Unbound when address is null
+	private NioHttpServer createNioListener(InetSocketAddress address) throws IOException {
+		return new NioHttpServer(address, 0, config.getInt("nio.selectorThreads", 0),
+				new BufferPool(config.getInt("nio.bufferSize", 16 * 1024), config.getInt("nio.maxPooledBuffers", 4096)),
+				config.getLong("nio.idleTimeoutMillis", 60_000), config.getLong("nio.ioTimeoutMillis", 30_000));
+	}
 
+	private HttpsServer createHttpsServer(InetSocketAddress address) throws Exception {
+		if (tlsManager == null) {
+			tlsManager = new TlsManager(config);
+		} else {
+			tlsManager.reloadIfChanged();
+		}
+		HttpsServer httpsServer = HttpsServer.create(address, 0);
+		httpsServer.setHttpsConfigurator(tlsManager.getConfigurator());
 		return httpsServer;
 	}
 
+	// Stops accepting at once and waits up to shutdown.drainTimeoutMillis for running exchanges, so
+	// uploads in progress get to finish; call it off the GUI thread and poll getDrainingExchangeCount
 	public void stopServer() {
-		if (isRunning) {
-			server.stop(0);
+		ListenerDrain drain;
+		synchronized (this) {
+			if (!isRunning) {
+				System.out.println("Server is not running.");
+				return;
+			}
 			isRunning = false;
-			System.out.println("Server stopped");
+			drain = beginDrain(server, executor);
+			server = null;
+			executor = null;
+		}
+		System.out.println("Server stopping, waiting for " + drain.getRemaining() + " exchanges");
+		finishDrain(drain);
+		requestHandlers.getSessionStore().flush();
+		requestHandlers.getAccessLog().flush(2000);
+		System.out.println("Server stopped");
+	}
+
+	// With the NIO engine the old listener hands its listening socket to the new one, so the port never
+	// closes and connections queued on it during the switch wait for the new listener instead of being
+	// reset. The JDK server cannot give up its socket: its old listener stops accepting first and the new
+	// one binds as soon as the port is free, a gap of a few milliseconds. Either way the old listener
+	// finishes its exchanges in the background.
+	public synchronized void restartServer() throws Exception {
+		if (!isRunning) {
+			startServer();
+			return;
+		}
+		HttpServer oldListener = server;
+		ServerExecutor oldExecutor = executor;
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		HttpServer listener;
+		ListenerDrain drain;
+		if (engine == Engine.NIO && !useSSL && oldListener instanceof NioHttpServer
+				&& address.equals(oldListener.getAddress())) {
+			NioHttpServer nioListener = createNioListener(null);
+			nioListener.bind(((NioHttpServer) oldListener).handOver());
+			listener = nioListener;
+			drain = beginDrain(oldListener, oldExecutor);
 		} else {
-			System.out.println("Server is not running.");
+			drain = beginDrain(oldListener, oldExecutor);
+			try {
+				listener = bindListener(address);
+			} catch (Exception bindFailure) {
+				isRunning = false;
+				server = null;
+				executor = null;
+				finishDrainInBackground(drain);
+				throw bindFailure;
+			}
+		}
+		startListener(listener);
+		finishDrainInBackground(drain);
+		System.out.println("Server restarted on " + host + ":" + port + " (" + (server instanceof NioHttpServer ? "NIO" : "JDK")
+				+ " engine, " + executionMode + " executor)");
+	}
+
+	private ListenerDrain beginDrain(HttpServer listener, ServerExecutor listenerExecutor) {
+		ListenerDrain drain = new ListenerDrain(listener, listenerExecutor, drainTimeoutMillis);
+		drains.add(drain);
+		return drain;
+	}
+
+	private void finishDrain(ListenerDrain drain) {
+		try {
+			drain.await();
+		} finally {
+			drains.remove(drain);
 		}
 	}
 
-	public void restartServer() throws Exception {
-		stopServer();
-		startServer();
+	private void finishDrainInBackground(ListenerDrain drain) {
+		Thread thread = new Thread(() -> finishDrain(drain), "listener-drain");
+		thread.setDaemon(true);
+		thread.start();
 	}
 
 	public boolean isRunning() {
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class ServerConfig {
+
+	public static final String DEFAULT_FILE = "server.properties";
+
+	private final Properties properties;
+
+	private ServerConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	public static ServerConfig load(String path) {
+		Properties properties = new Properties();
+		File file = new File(path);
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				properties.load(is);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return new ServerConfig(properties);
+	}
+
+	// A copy with one setting replaced, for code that builds the server's parts on its own
+	public ServerConfig with(String key, String value) {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		copy.setProperty(key, value);
+		return new ServerConfig(copy);
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+	}
+}
@@ -1,26 +1,46 @@
 package server;
 
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 public class ServerContextSetup {
 	private final RequestHandlers requestHandlers;
+	private final ServerMetrics metrics;
+	private final AdmissionControl admissionControl;
 
-	public ServerContextSetup(RequestHandlers requestHandlers) {
+	public ServerContextSetup(RequestHandlers requestHandlers, ServerMetrics metrics,
+			AdmissionControl admissionControl) {
 		this.requestHandlers = requestHandlers;
+		this.metrics = metrics;
+		this.admissionControl = admissionControl;
 	}
 
 	public void setupContexts(HttpServer server) {
-		server.createContext("/", requestHandlers::handleRootRequest);
-		server.createContext("/register", requestHandlers::handleRegisterRequest);
-		server.createContext("/login", requestHandlers::handleLoginRequest);
-		server.createContext("/logout", requestHandlers::handleLogoutRequest);
-		server.createContext("/getUserName", requestHandlers::handleGetUserNameRequest);
-		server.createContext("/listProjects", requestHandlers::handleListProjectsRequest);
-		server.createContext("/listFilesInProject", requestHandlers::handleListFilesInProjectRequest);
-		server.createContext("/upload", requestHandlers::handleUploadRequest);
-		server.createContext("/deleteFile", requestHandlers::handleDeleteFileRequest);
-		server.createContext("/createProject", requestHandlers::handleCreateProjectRequest);
-		server.createContext("/deleteProject", requestHandlers::handleDeleteProjectRequest);
-		server.createContext("/checkFileExistence", requestHandlers::handleCheckFileExistenceRequest);
+		createContext(server, "/", requestHandlers::handleRootRequest);
+		createContext(server, "/register", requestHandlers::handleRegisterRequest);
+		createContext(server, "/login", requestHandlers::handleLoginRequest);
+		createContext(server, "/logout", requestHandlers::handleLogoutRequest);
+		createSessionContext(server, "/getUserName", requestHandlers::handleGetUserNameRequest);
+		createSessionContext(server, "/listProjects", requestHandlers::handleListProjectsRequest);
+		createSessionContext(server, "/listFilesInProject", requestHandlers::handleListFilesInProjectRequest);
+		createSessionContext(server, "/upload", requestHandlers::handleUploadRequest);
+		createSessionContext(server, "/uploadSession", requestHandlers::handleUploadSessionRequest);
+		createSessionContext(server, "/uploadChunk", requestHandlers::handleUploadChunkRequest);
+		createSessionContext(server, "/bulkUpload", requestHandlers::handleBulkUploadRequest);
+		createSessionContext(server, "/deleteFile", requestHandlers::handleDeleteFileRequest);
+		createSessionContext(server, "/createProject", requestHandlers::handleCreateProjectRequest);
+		createSessionContext(server, "/deleteProject", requestHandlers::handleDeleteProjectRequest);
+		createSessionContext(server, "/checkFileExistence", requestHandlers::handleCheckFileExistenceRequest);
+		createContext(server, "/metrics", requestHandlers::handleMetricsRequest);
 	}
-}
\ No newline at end of file
+
+	// Routes that act on a user's files; see SessionStore.wrap
+	private void createSessionContext(HttpServer server, String path, HttpHandler handler) {
+		createContext(server, path, requestHandlers.getSessionStore().wrap(handler));
+	}
+
+	private void createContext(HttpServer server, String path, HttpHandler handler) {
+		// Rejected requests still show up in the route's status counts
+		server.createContext(path, metrics.wrap(path, admissionControl.wrap(path, handler)));
+	}
+}
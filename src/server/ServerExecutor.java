@@ -0,0 +1,186 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ServerExecutor implements Executor {
+
+	public enum Mode {
+		VIRTUAL, BOUNDED, SINGLE;
+
+		public static Mode fromString(String value, Mode defaultMode) {
+			if (value != null) {
+				for (Mode mode : values()) {
+					if (mode.name().equalsIgnoreCase(value.trim())) {
+						return mode;
+					}
+				}
+			}
+			return defaultMode;
+		}
+	}
+
+	// Exchanges turned away run here instead: the engine parses the request and AdmissionControl answers
+	// 503 before any handler code runs. Bounded, so a flood of slow clients cannot pile up threads
+	private static final int MAX_OVERFLOW = 256;
+	private static final ThreadLocal<Boolean> OVERFLOW = new ThreadLocal<>();
+
+	private final Mode mode;
+	private final ExecutorService delegate;
+	private final AdmissionControl admissionControl;
+	private final ExecutorService overflow;
+	private final Semaphore overflowPermits = new Semaphore(MAX_OVERFLOW);
+	private final AtomicInteger activeCount = new AtomicInteger();
+	private final AtomicInteger queuedCount = new AtomicInteger();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong saturatedCount = new AtomicLong();
+
+	public ServerExecutor(Mode mode, int maxThreads, int queueCapacity) {
+		this(mode, maxThreads, queueCapacity, null);
+	}
+
+	// Exchanges past admission.maxInFlight are turned away here, before they can wait in the queue
+	public ServerExecutor(Mode mode, int maxThreads, int queueCapacity, AdmissionControl admissionControl) {
+		this.mode = mode;
+		this.admissionControl = admissionControl;
+		this.overflow = mode != Mode.SINGLE ? newVirtualThreadExecutor("http-overflow") : null;
+		switch (mode) {
+		case VIRTUAL:
+			this.delegate = newVirtualThreadExecutor("http-worker");
+			break;
+		case BOUNDED:
+			int threads = Math.max(1, maxThreads);
+			this.delegate = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), namedThreadFactory("http-worker"),
+					new ThreadPoolExecutor.AbortPolicy());
+			((ThreadPoolExecutor) delegate).allowCoreThreadTimeOut(true);
+			break;
+		default:
+			this.delegate = null;
+		}
+	}
+
+	// Called on the engine's dispatcher or selector thread, which must never run a handler (except in
+	// SINGLE mode, whose point is to do exactly that)
+	@Override
+	public void execute(Runnable task) {
+		if (delegate == null) {
+			queuedCount.incrementAndGet();
+			run(task);
+			return;
+		}
+		if (admissionControl != null && !admissionControl.tryEnter()) {
+			turnAway(task);
+			return;
+		}
+		queuedCount.incrementAndGet();
+		try {
+			delegate.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			// Queue is full
+			queuedCount.decrementAndGet();
+			if (admissionControl != null) {
+				admissionControl.exit();
+			}
+			turnAway(task);
+		}
+	}
+
+	private void run(Runnable task) {
+		queuedCount.decrementAndGet();
+		activeCount.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			activeCount.decrementAndGet();
+			completedCount.incrementAndGet();
+			if (admissionControl != null && delegate != null) {
+				admissionControl.exit();
+			}
+		}
+	}
+
+	private void turnAway(Runnable task) {
+		saturatedCount.incrementAndGet();
+		if (!overflowPermits.tryAcquire()) {
+			// Left to the engine, which drops the connection
+			throw new RejectedExecutionException("Executor and overflow are both full");
+		}
+		try {
+			overflow.execute(() -> {
+				OVERFLOW.set(Boolean.TRUE);
+				try {
+					task.run();
+				} finally {
+					OVERFLOW.remove();
+					overflowPermits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			overflowPermits.release();
+			throw e;
+		}
+	}
+
+	// True on the thread of an exchange that was turned away; AdmissionControl answers it with 503
+	public static boolean isOverflow() {
+		return OVERFLOW.get() != null;
+	}
+
+	public void shutdown() {
+		if (delegate != null) {
+			delegate.shutdown();
+		}
+		if (overflow != null) {
+			overflow.shutdown();
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	public int getQueueDepth() {
+		return queuedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	public long getSaturatedCount() {
+		return saturatedCount.get();
+	}
+
+	private static ExecutorService newVirtualThreadExecutor(String fallbackPrefix) {
+		// Looked up reflectively so the project still compiles and runs on JDKs without virtual threads
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			RequestHandlers.logger.warning("Virtual threads are not available, using a cached thread pool instead.");
+			return Executors.newCachedThreadPool(namedThreadFactory(fallbackPrefix));
+		}
+	}
+
+	private static ThreadFactory namedThreadFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
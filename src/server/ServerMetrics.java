@@ -0,0 +1,313 @@
+package server;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics {
+
+	public static class RouteMetrics {
+		private final String route;
+		private final LongAdder requests = new LongAdder();
+		private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder dbNanos = new LongAdder();
+		private final LongAdder diskNanos = new LongAdder();
+
+		RouteMetrics(String route) {
+			this.route = route;
+		}
+
+		public String getRoute() {
+			return route;
+		}
+
+		public long getRequestCount() {
+			return requests.sum();
+		}
+
+		public long getStatusCount(int status) {
+			LongAdder counter = statusCounts.get(status);
+			return counter != null ? counter.sum() : 0;
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public double getDbSeconds() {
+			return dbNanos.sum() / 1_000_000_000.0;
+		}
+
+		public double getDiskSeconds() {
+			return diskNanos.sum() / 1_000_000_000.0;
+		}
+	}
+
+	// Time spent in the database and on disk by the request running on the current thread
+	private static class RequestTimings {
+		long dbNanos;
+		long diskNanos;
+	}
+
+	private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+	private final AtomicInteger totalInFlight = new AtomicInteger();
+
+	public static void recordDbTime(long nanos) {
+		RequestTimings timings = CURRENT.get();
+		if (timings != null) {
+			timings.dbNanos += nanos;
+		}
+	}
+
+	public static void recordDiskTime(long nanos) {
+		RequestTimings timings = CURRENT.get();
+		if (timings != null) {
+			timings.diskNanos += nanos;
+		}
+	}
+
+	public RouteMetrics getRoute(String route) {
+		return routes.computeIfAbsent(route, RouteMetrics::new);
+	}
+
+	public Map<String, RouteMetrics> getRoutes() {
+		return new TreeMap<>(routes);
+	}
+
+	public int getTotalInFlight() {
+		return totalInFlight.get();
+	}
+
+	public HttpHandler wrap(String route, HttpHandler handler) {
+		RouteMetrics metrics = getRoute(route);
+		return exchange -> {
+			RequestTimings timings = new RequestTimings();
+			CURRENT.set(timings);
+			metrics.inFlight.incrementAndGet();
+			totalInFlight.incrementAndGet();
+			long start = System.nanoTime();
+			int status = 500;
+			try {
+				handler.handle(exchange);
+				status = exchange.getResponseCode();
+			} finally {
+				metrics.latency.recordNanos(System.nanoTime() - start);
+				metrics.inFlight.decrementAndGet();
+				totalInFlight.decrementAndGet();
+				metrics.requests.increment();
+				metrics.statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+				metrics.dbNanos.add(timings.dbNanos);
+				metrics.diskNanos.add(timings.diskNanos);
+				CURRENT.remove();
+			}
+		};
+	}
+
+	public void writePrometheus(Appendable out, Server server) throws IOException {
+		Map<String, RouteMetrics> snapshot = getRoutes();
+
+		out.append("# HELP webserver_http_requests_total Requests handled, by route and status code.\n");
+		out.append("# TYPE webserver_http_requests_total counter\n");
+		for (RouteMetrics metrics : snapshot.values()) {
+			for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(metrics.statusCounts).entrySet()) {
+				out.append("webserver_http_requests_total{route=\"").append(escape(metrics.route))
+						.append("\",status=\"").append(String.valueOf(status.getKey())).append("\"} ")
+						.append(String.valueOf(status.getValue().sum())).append('\n');
+			}
+		}
+
+		out.append("# HELP webserver_http_requests_in_flight Requests currently being handled.\n");
+		out.append("# TYPE webserver_http_requests_in_flight gauge\n");
+		for (RouteMetrics metrics : snapshot.values()) {
+			sample(out, "webserver_http_requests_in_flight", metrics.route, null, metrics.getInFlight());
+		}
+
+		out.append("# HELP webserver_http_request_duration_seconds Request latency.\n");
+		out.append("# TYPE webserver_http_request_duration_seconds summary\n");
+		for (RouteMetrics metrics : snapshot.values()) {
+			for (double quantile : QUANTILES) {
+				sample(out, "webserver_http_request_duration_seconds", metrics.route, String.valueOf(quantile),
+						metrics.latency.percentileSeconds(quantile));
+			}
+			sample(out, "webserver_http_request_duration_seconds_sum", metrics.route, null,
+					metrics.latency.getSumSeconds());
+			sample(out, "webserver_http_request_duration_seconds_count", metrics.route, null,
+					metrics.latency.getCount());
+		}
+
+		out.append("# HELP webserver_http_db_seconds_total Time requests spent holding a database connection.\n");
+		out.append("# TYPE webserver_http_db_seconds_total counter\n");
+		for (RouteMetrics metrics : snapshot.values()) {
+			sample(out, "webserver_http_db_seconds_total", metrics.route, null, metrics.getDbSeconds());
+		}
+
+		out.append("# HELP webserver_http_disk_seconds_total Time requests spent reading or writing files.\n");
+		out.append("# TYPE webserver_http_disk_seconds_total counter\n");
+		for (RouteMetrics metrics : snapshot.values()) {
+			sample(out, "webserver_http_disk_seconds_total", metrics.route, null, metrics.getDiskSeconds());
+		}
+
+		AdmissionControl admission = server.getAdmissionControl();
+		out.append("# HELP webserver_http_rejected_total Requests turned away before reaching a handler, by route and reason.\n");
+		out.append("# TYPE webserver_http_rejected_total counter\n");
+		for (AdmissionControl.RateLimit rateLimit : admission.getRateLimits().values()) {
+			rejected(out, rateLimit.getRoute(), "rate_limited", rateLimit.getRejectedCount());
+		}
+		for (Map.Entry<String, Long> overloaded : admission.getOverloadedCounts().entrySet()) {
+			rejected(out, overloaded.getKey(), "overloaded", overloaded.getValue());
+		}
+		int rateLimitedClients = 0;
+		for (AdmissionControl.RateLimit rateLimit : admission.getRateLimits().values()) {
+			rateLimitedClients += rateLimit.getClientCount();
+		}
+		gauge(out, "webserver_rate_limit_clients", "Client/route token buckets that have not refilled yet.",
+				rateLimitedClients);
+		gauge(out, "webserver_admission_in_flight", "Requests counted against admission.maxInFlight.",
+				admission.getInFlight());
+
+		gauge(out, "webserver_drain_exchanges_remaining",
+				"Exchanges still running on listeners that have stopped accepting.", server.getDrainingExchangeCount());
+		gauge(out, "webserver_executor_active_threads", "Handler threads currently running.",
+				server.getActiveThreadCount());
+		gauge(out, "webserver_executor_queue_depth", "Exchanges waiting for a handler thread.",
+				server.getQueueDepth());
+
+		if (server.getListener() instanceof NioHttpServer) {
+			NioHttpServer nio = (NioHttpServer) server.getListener();
+			gauge(out, "webserver_nio_connections_open", "Client connections open on the NIO engine.",
+					nio.getOpenConnectionCount());
+			counter(out, "webserver_nio_pipelined_requests_total",
+					"Requests parsed from bytes that arrived with the previous request.", nio.getPipelinedRequestCount());
+			gauge(out, "webserver_nio_buffers_pooled", "Direct buffers waiting in the pool.",
+					nio.getBufferPool().getPooledCount());
+			counter(out, "webserver_nio_buffers_allocated_total", "Direct buffers allocated by the pool.",
+					nio.getBufferPool().getAllocatedCount());
+		}
+
+		TlsManager tls = server.getTlsManager();
+		if (tls != null) {
+			counter(out, "webserver_tls_full_handshakes_total", "TLS handshakes that created a new session.",
+					tls.getFullHandshakeCount());
+			counter(out, "webserver_tls_resumed_handshakes_total", "TLS handshakes that resumed a cached session.",
+					tls.getResumedHandshakeCount());
+			counter(out, "webserver_tls_handshake_failures_total", "TLS handshakes that ended with an error.",
+					tls.getFailedHandshakeCount());
+			summary(out, "webserver_tls_handshake_duration_seconds",
+					"Time from the first TLS record to the end of the handshake.", tls.getHandshakeLatency());
+			counter(out, "webserver_tls_keystore_reloads_total", "Keystore changes picked up without a restart.",
+					tls.getReloadCount());
+			counter(out, "webserver_tls_keystore_reload_failures_total", "Keystore changes that could not be loaded.",
+					tls.getReloadFailureCount());
+		}
+
+		ConnectionPool pool = server.getConnectionPool();
+		if (pool != null) {
+			gauge(out, "webserver_db_pool_borrowed", "Database connections in use.", pool.getBorrowedCount());
+			gauge(out, "webserver_db_pool_idle", "Idle database connections.", pool.getIdleCount());
+			gauge(out, "webserver_db_pool_pending", "Threads waiting for a database connection.",
+					pool.getPendingCount());
+			counter(out, "webserver_db_pool_timeouts_total", "Connection acquisitions that timed out.",
+					pool.getTimeoutCount());
+		}
+
+		RequestHandlers handlers = server.getRequestHandlers();
+		StaticFileCache fileCache = handlers.getFileCache();
+		gauge(out, "webserver_file_cache_bytes", "Bytes held by the static file cache.", fileCache.getCurrentBytes());
+		counter(out, "webserver_file_cache_hits_total", "Static file cache hits.", fileCache.getHitCount());
+		counter(out, "webserver_file_cache_misses_total", "Static file cache misses.", fileCache.getMissCount());
+		counter(out, "webserver_file_cache_evictions_total", "Static file cache evictions.",
+				fileCache.getEvictionCount());
+
+		ProjectReaper reaper = handlers.getProjectReaper();
+		gauge(out, "webserver_trash_pending", "Deleted projects whose files are still being removed.",
+				reaper.getPendingCount());
+		counter(out, "webserver_trash_completed_total", "Deleted projects whose files are all gone.",
+				reaper.getCompletedCount());
+		counter(out, "webserver_trash_files_deleted_total", "Files removed from the trash.",
+				reaper.getDeletedFileCount());
+		counter(out, "webserver_trash_bytes_deleted_total", "Bytes removed from the trash.", reaper.getDeletedBytes());
+		counter(out, "webserver_trash_retries_total", "Trash deletions that failed and were rescheduled.",
+				reaper.getRetryCount());
+
+		SessionStore sessions = handlers.getSessionStore();
+		gauge(out, "webserver_sessions_active", "Login sessions that have not expired or been revoked.",
+				sessions.getActiveCount());
+		counter(out, "webserver_sessions_created_total", "Login sessions issued.", sessions.getCreatedCount());
+		counter(out, "webserver_sessions_revoked_total", "Login sessions ended by logout.", sessions.getRevokedCount());
+		counter(out, "webserver_sessions_expired_total", "Login sessions dropped after session.ttlMillis idle.",
+				sessions.getExpiredCount());
+		counter(out, "webserver_sessions_rejected_total",
+				"Requests refused for a missing, expired or mismatched session token.", sessions.getRejectedCount());
+
+		UserIdCache userIdCache = handlers.getUserIdCache();
+		counter(out, "webserver_user_cache_hits_total", "UserID cache hits.", userIdCache.getHitCount());
+		counter(out, "webserver_user_cache_misses_total", "UserID cache misses.", userIdCache.getMissCount());
+
+		counter(out, "webserver_form_truncated_total",
+				"Query strings and form bodies cut short by form.maxParameters or form.maxBytes.",
+				FormParser.getTruncatedCount());
+		counter(out, "webserver_access_log_dropped_total", "Access log entries dropped because the buffer was full.",
+				handlers.getAccessLog().getDroppedCount());
+	}
+
+	private static void sample(Appendable out, String name, String route, String quantile, double value)
+			throws IOException {
+		out.append(name).append("{route=\"").append(escape(route)).append('"');
+		if (quantile != null) {
+			out.append(",quantile=\"").append(quantile).append('"');
+		}
+		out.append("} ").append(format(value)).append('\n');
+	}
+
+	private static void rejected(Appendable out, String route, String reason, long value) throws IOException {
+		out.append("webserver_http_rejected_total{route=\"").append(escape(route)).append("\",reason=\"")
+				.append(reason).append("\"} ").append(format(value)).append('\n');
+	}
+
+	private static void summary(Appendable out, String name, String help, LatencyHistogram histogram)
+			throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" summary\n");
+		for (double quantile : QUANTILES) {
+			out.append(name).append("{quantile=\"").append(String.valueOf(quantile)).append("\"} ")
+					.append(format(histogram.percentileSeconds(quantile))).append('\n');
+		}
+		out.append(name).append("_sum ").append(format(histogram.getSumSeconds())).append('\n');
+		out.append(name).append("_count ").append(format(histogram.getCount())).append('\n');
+	}
+
+	private static void gauge(Appendable out, String name, String help, double value) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static void counter(Appendable out, String name, String help, double value) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+				: Double.toString(value);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
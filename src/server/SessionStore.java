@@ -0,0 +1,349 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sessions issued by /login. The client gets an opaque random token; the server only keeps its SHA-256,
+// so neither the map nor session.file holds anything that can be replayed. A session expires after
+// session.ttlMillis without a request. Checking a token is a hash and a map lookup, with no database.
+public class SessionStore {
+
+	public static final String HEADER = "X-Session-Token";
+	public static final String COOKIE = "session";
+	// Exchange attributes are shared by every request of a context in the JDK server, so the session the
+	// current request was admitted with is kept per thread, as ServerMetrics does for its timings
+	private static final ThreadLocal<Session> CURRENT = new ThreadLocal<>();
+
+	private static final int TOKEN_BYTES = 32;
+
+	public static class Session {
+		private final String username;
+		private final String email;
+		private volatile long expiresAt;
+
+		Session(String username, String email, long expiresAt) {
+			this.username = username;
+			this.email = email;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getEmail() {
+			return email;
+		}
+	}
+
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final long ttlMillis;
+	// Sliding expiry is only pushed forward in steps of this much, so busy sessions are not rewritten per request
+	private final long touchMillis;
+	private final boolean required;
+	private final int maxFormParameters;
+	private final File file;
+	private volatile boolean dirty;
+
+	private final LongAdder createdCount = new LongAdder();
+	private final LongAdder revokedCount = new LongAdder();
+	private final LongAdder expiredCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+
+	public SessionStore(ServerConfig config) {
+		this.ttlMillis = Math.max(1000, config.getLong("session.ttlMillis", 30L * 60 * 1000));
+		this.touchMillis = Math.max(1, ttlMillis / 100);
+		this.required = config.getBoolean("session.required", false);
+		this.maxFormParameters = config.getInt("form.maxParameters", FormParser.DEFAULT_MAX_PARAMETERS);
+		String path = config.getString("session.file", "");
+		this.file = path.isEmpty() ? null : new File(path);
+		if (file != null) {
+			load();
+		}
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long sweepIntervalMillis = Math.max(1000, config.getLong("session.sweepIntervalMillis", 60_000));
+		sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public String create(String username, String email) {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		sessions.put(hash(token), new Session(username, email, System.currentTimeMillis() + ttlMillis));
+		createdCount.increment();
+		dirty = true;
+		return token;
+	}
+
+	// Null when the token is unknown or has expired; a valid token extends its session
+	public Session validate(String token) {
+		String key = hash(token);
+		Session session = sessions.get(key);
+		if (session == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (session.expiresAt <= now) {
+			if (sessions.remove(key, session)) {
+				expiredCount.increment();
+				dirty = true;
+			}
+			return null;
+		}
+		if (now + ttlMillis - session.expiresAt >= touchMillis) {
+			session.expiresAt = now + ttlMillis;
+			dirty = true;
+		}
+		return session;
+	}
+
+	public boolean revoke(String token) {
+		if (token == null || sessions.remove(hash(token)) == null) {
+			return false;
+		}
+		revokedCount.increment();
+		dirty = true;
+		return true;
+	}
+
+	// Ends every session of a user, e.g. when the account is deleted; returns how many there were
+	public int revokeUser(String username) {
+		int revoked = 0;
+		for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+			if (entry.getValue().username.equals(username) && sessions.remove(entry.getKey(), entry.getValue())) {
+				revoked++;
+			}
+		}
+		if (revoked > 0) {
+			revokedCount.add(revoked);
+			dirty = true;
+		}
+		return revoked;
+	}
+
+	public boolean isRequired() {
+		return required;
+	}
+
+	// Header first, for API clients; the cookie is what a browser sends back
+	public static String tokenOf(HttpExchange exchange) {
+		String token = exchange.getRequestHeaders().getFirst(HEADER);
+		if (token != null && !token.isEmpty()) {
+			return token.trim();
+		}
+		List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+		if (cookies == null) {
+			return null;
+		}
+		for (String header : cookies) {
+			for (String cookie : header.split(";")) {
+				int eq = cookie.indexOf('=');
+				if (eq > 0 && cookie.substring(0, eq).trim().equals(COOKIE)) {
+					return cookie.substring(eq + 1).trim();
+				}
+			}
+		}
+		return null;
+	}
+
+	// The session the running request was admitted with, or null for an anonymous request
+	public static Session current() {
+		return CURRENT.get();
+	}
+
+	public void issue(HttpExchange exchange, String token) {
+		exchange.getResponseHeaders().set(HEADER, token);
+		exchange.getResponseHeaders().add("Set-Cookie", COOKIE + "=" + token + "; Path=/; Max-Age="
+				+ ttlMillis / 1000 + "; HttpOnly; SameSite=Strict");
+	}
+
+	public void clear(HttpExchange exchange) {
+		exchange.getResponseHeaders().add("Set-Cookie", COOKIE + "=; Path=/; Max-Age=0; HttpOnly; SameSite=Strict");
+	}
+
+	// Routes behind this need a live session when session.required is set. A token that is sent must be
+	// valid either way, and a username in the query string must be the session's own
+	public HttpHandler wrap(HttpHandler handler) {
+		return exchange -> {
+			String token = tokenOf(exchange);
+			if (token == null) {
+				if (required) {
+					rejectedCount.increment();
+					reject(exchange, 401, "Login required.");
+					return;
+				}
+				handler.handle(exchange);
+				return;
+			}
+			Session session = validate(token);
+			if (session == null) {
+				rejectedCount.increment();
+				clear(exchange);
+				reject(exchange, 401, "Session expired, please log in again.");
+				return;
+			}
+			// Parsed the way the handler will parse it, so both see the same username
+			String username = FormParser.parse(exchange.getRequestURI().getRawQuery(), maxFormParameters)
+					.get("username");
+			if (username != null && !username.equals(session.username)) {
+				rejectedCount.increment();
+				reject(exchange, 403, "Forbidden.");
+				return;
+			}
+			CURRENT.set(session);
+			try {
+				handler.handle(exchange);
+			} finally {
+				CURRENT.remove();
+			}
+		};
+	}
+
+	private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private static String hash(String token) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getUrlEncoder().withoutPadding()
+					.encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JDK ships SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		int before = sessions.size();
+		sessions.values().removeIf(session -> session.expiresAt <= now);
+		int expired = before - sessions.size();
+		if (expired > 0) {
+			expiredCount.add(expired);
+			dirty = true;
+		}
+		if (file != null && dirty) {
+			save();
+		}
+	}
+
+	private synchronized void save() {
+		dirty = false;
+		Properties properties = new Properties();
+		for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+			Session session = entry.getValue();
+			properties.setProperty(entry.getKey() + ".username", session.username);
+			properties.setProperty(entry.getKey() + ".email", session.email != null ? session.email : "");
+			properties.setProperty(entry.getKey() + ".expiresAt", Long.toString(session.expiresAt));
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			try (FileOutputStream os = new FileOutputStream(temp)) {
+				properties.store(os, null);
+				os.getFD().sync();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			dirty = true;
+			RequestHandlers.logger.warning("Could not save sessions to " + file + ": " + e.getMessage());
+		}
+	}
+
+	private void load() {
+		if (!file.isFile()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(file)) {
+			properties.load(is);
+		} catch (IOException e) {
+			RequestHandlers.logger.warning("Could not read sessions from " + file + ": " + e.getMessage());
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (String name : properties.stringPropertyNames()) {
+			if (!name.endsWith(".expiresAt")) {
+				continue;
+			}
+			String key = name.substring(0, name.length() - ".expiresAt".length());
+			String username = properties.getProperty(key + ".username");
+			long expiresAt;
+			try {
+				expiresAt = Long.parseLong(properties.getProperty(name));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (username != null && expiresAt > now) {
+				String email = properties.getProperty(key + ".email", "");
+				sessions.put(key, new Session(username, email.isEmpty() ? null : email, expiresAt));
+			}
+		}
+		RequestHandlers.logger.info("Restored " + sessions.size() + " sessions from " + file);
+	}
+
+	// Called on shutdown so sessions touched since the last sweep are not lost
+	public void flush() {
+		if (file != null && dirty) {
+			save();
+		}
+	}
+
+	public int getActiveCount() {
+		return sessions.size();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.sum();
+	}
+
+	public long getRevokedCount() {
+		return revokedCount.sum();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+}
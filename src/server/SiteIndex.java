@@ -0,0 +1,328 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-memory copy of the html/ tree (users, projects and their files with size and mtime), so
+// listings and existence checks are map lookups. Built in parallel at startup, then kept current
+// by a WatchService and by the handlers, which refresh the index after every change they make
+// so their own writes are visible immediately rather than after the watcher catches up.
+public class SiteIndex {
+
+	public static class Entry {
+		private final Map<String, Entry> children;
+		private volatile long size;
+		private volatile long lastModified;
+
+		private Entry(boolean directory) {
+			this.children = directory ? new ConcurrentHashMap<>() : null;
+		}
+
+		public boolean isDirectory() {
+			return children != null;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+
+	private final Path root;
+	private final Entry rootEntry = new Entry(true);
+	private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+	private final AtomicLong rescanCount = new AtomicLong();
+	private WatchService watchService;
+	private Thread watcherThread;
+	private volatile boolean watching;
+	// Set once a directory could not be watched (e.g. the inotify watch limit), so changes in it go unseen
+	private volatile boolean incomplete;
+
+	public SiteIndex(File root) {
+		this.root = root.toPath().toAbsolutePath().normalize();
+	}
+
+	public void start(boolean watch) {
+		if (watch) {
+			try {
+				watchService = FileSystems.getDefault().newWatchService();
+			} catch (IOException e) {
+				RequestHandlers.logger.warning("Could not watch " + root + ", the index will only see server changes: "
+						+ e.getMessage());
+			}
+		}
+		long start = System.nanoTime();
+		scan(root, rootEntry, true);
+		RequestHandlers.logger.info("Indexed " + root + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		if (watchService != null) {
+			watching = true;
+			watcherThread = new Thread(this::watchLoop, "html-index-watcher");
+			watcherThread.setDaemon(true);
+			watcherThread.start();
+		}
+	}
+
+	public void shutdown() {
+		watching = false;
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				// The watcher thread exits either way
+			}
+		}
+	}
+
+	// True while the WatchService is delivering events for every directory; otherwise changes made outside
+	// the server may be missing and a miss is checked on disk
+	public boolean isWatching() {
+		return watching && !incomplete;
+	}
+
+	// path is relative to the root and '/'-separated, e.g. "alice/project/index.html"
+	public Entry get(String path) {
+		Entry entry = rootEntry;
+		int start = 0;
+		int length = path.length();
+		while (start < length) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			if (end > start) {
+				String name = path.substring(start, end);
+				if (name.equals("..") || entry.children == null) {
+					return null;
+				}
+				if (!name.equals(".")) {
+					entry = entry.children.get(name);
+					if (entry == null) {
+						return null;
+					}
+				}
+			}
+			start = end + 1;
+		}
+		return entry;
+	}
+
+	public boolean isFile(String path) {
+		Entry entry = find(path);
+		return entry != null && !entry.isDirectory();
+	}
+
+	public boolean isDirectory(String path) {
+		Entry entry = find(path);
+		return entry != null && entry.isDirectory();
+	}
+
+	// Sorted names of a directory's children, or null if the directory is not in the index
+	public List<String> list(String path, boolean directoriesOnly) {
+		Entry entry = find(path);
+		if (entry == null || !entry.isDirectory()) {
+			return null;
+		}
+		List<String> names = new ArrayList<>(entry.children.size());
+		for (Map.Entry<String, Entry> child : entry.children.entrySet()) {
+			if (!directoriesOnly || child.getValue().isDirectory()) {
+				names.add(child.getKey());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	// Like get, but a miss the watcher cannot vouch for is looked up on disk and added to the index
+	private Entry find(String path) {
+		Entry entry = get(path);
+		if (entry != null || isWatching()) {
+			return entry;
+		}
+		try {
+			Path file = root.resolve(path.replaceFirst("^/+", "")).normalize();
+			if (!file.startsWith(root) || !Files.exists(file)) {
+				return null;
+			}
+			refresh(file, true);
+			return get(relative(file));
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	// Re-reads a file or directory (recursively) after the server changed it
+	public void refresh(File file) {
+		refresh(file.toPath().toAbsolutePath().normalize(), true);
+	}
+
+	public void remove(File file) {
+		remove(file.toPath().toAbsolutePath().normalize());
+	}
+
+	public long getRescanCount() {
+		return rescanCount.get();
+	}
+
+	private void refresh(Path path, boolean rescanDirectory) {
+		if (!path.startsWith(root)) {
+			return;
+		}
+		if (path.equals(root)) {
+			scan(root, rootEntry, false);
+			return;
+		}
+		File file = path.toFile();
+		if (!file.exists()) {
+			remove(path);
+			return;
+		}
+		Entry parent = get(relative(path.getParent()));
+		if (parent == null) {
+			// Scanning the missing parent picks this path up as well
+			refresh(path.getParent(), true);
+			return;
+		}
+		if (!parent.isDirectory()) {
+			return;
+		}
+		String name = path.getFileName().toString();
+		if (file.isDirectory()) {
+			Entry entry = parent.children.get(name);
+			if (entry == null || !entry.isDirectory()) {
+				entry = new Entry(true);
+				parent.children.put(name, entry);
+				rescanDirectory = true;
+			}
+			if (rescanDirectory) {
+				scan(path, entry, false);
+			} else {
+				entry.lastModified = file.lastModified();
+			}
+		} else {
+			Entry entry = new Entry(false);
+			entry.size = file.length();
+			entry.lastModified = file.lastModified();
+			parent.children.put(name, entry);
+		}
+	}
+
+	private void remove(Path path) {
+		if (!path.startsWith(root) || path.equals(root)) {
+			return;
+		}
+		Entry parent = get(relative(path.getParent()));
+		if (parent != null && parent.isDirectory()) {
+			parent.children.remove(path.getFileName().toString());
+		}
+	}
+
+	// Registers the directory before listing it, so files created during the scan are not missed
+	private void scan(Path directory, Entry entry, boolean parallel) {
+		register(directory);
+		File[] files = directory.toFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		entry.lastModified = directory.toFile().lastModified();
+		List<String> present = new ArrayList<>(files.length);
+		for (File file : files) {
+			present.add(file.getName());
+		}
+		entry.children.keySet().retainAll(present);
+
+		// User directories are independent, so the top level is scanned in parallel
+		(parallel ? Arrays.stream(files).parallel() : Arrays.stream(files)).forEach(file -> {
+			if (file.isDirectory()) {
+				Entry child = entry.children.get(file.getName());
+				if (child == null || !child.isDirectory()) {
+					child = new Entry(true);
+					entry.children.put(file.getName(), child);
+				}
+				scan(file.toPath(), child, false);
+			} else {
+				Entry child = new Entry(false);
+				child.size = file.length();
+				child.lastModified = file.lastModified();
+				entry.children.put(file.getName(), child);
+			}
+		});
+	}
+
+	private void register(Path directory) {
+		if (watchService == null) {
+			return;
+		}
+		try {
+			WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			watchedDirectories.put(key, directory);
+		} catch (NoSuchFileException | ClosedWatchServiceException e) {
+			// Deleted before it could be watched; the parent's delete event removes it from the index
+		} catch (IOException e) {
+			if (!incomplete) {
+				incomplete = true;
+				RequestHandlers.logger.warning("Could not watch " + directory
+						+ ", index misses are checked on disk from now on: " + e.getMessage());
+			}
+		}
+	}
+
+	private void watchLoop() {
+		while (watching) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			Path directory = watchedDirectories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				try {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+						// Events were lost, only a full rescan can tell what changed
+						rescanCount.incrementAndGet();
+						scan(root, rootEntry, true);
+						continue;
+					}
+					Path path = directory.resolve((Path) event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						remove(path);
+					} else {
+						// A modified directory is already watched itself; only a new one needs scanning
+						refresh(path, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+					}
+				} catch (RuntimeException e) {
+					RequestHandlers.logger.warning("Could not update html index: " + e.getMessage());
+				}
+			}
+			if (!key.reset()) {
+				watchedDirectories.remove(key);
+			}
+		}
+		watching = false;
+	}
+
+	private String relative(Path path) {
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+}
@@ -0,0 +1,199 @@
+package server;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StaticFileCache {
+
+	public static class Entry {
+		private final byte[] body;
+		private final String mimeType;
+		private final long lastModified;
+		private final long fileLength;
+		private final String etag;
+		private final byte[] gzipBody;
+		private final byte[] deflateBody;
+
+		public Entry(byte[] body, String mimeType, long lastModified, long fileLength, String etag, byte[] gzipBody,
+				byte[] deflateBody) {
+			this.body = body;
+			this.mimeType = mimeType;
+			this.lastModified = lastModified;
+			this.fileLength = fileLength;
+			this.etag = etag;
+			this.gzipBody = gzipBody;
+			this.deflateBody = deflateBody;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getFileLength() {
+			return fileLength;
+		}
+
+		public int getLength() {
+			return body.length;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public byte[] getGzipBody() {
+			return gzipBody;
+		}
+
+		public byte[] getDeflateBody() {
+			return deflateBody;
+		}
+
+		public long getCachedBytes() {
+			return body.length + (gzipBody != null ? gzipBody.length : 0)
+					+ (deflateBody != null ? deflateBody.length : 0);
+		}
+	}
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	// Access-ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long currentBytes;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	public StaticFileCache(long maxBytes, long maxEntryBytes) {
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+	}
+
+	public Entry get(String path, File file) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(path);
+		}
+		if (entry != null) {
+			if (entry.lastModified == file.lastModified() && entry.fileLength == file.length()) {
+				hitCount.incrementAndGet();
+				return entry;
+			}
+			synchronized (this) {
+				if (entries.get(path) == entry) {
+					remove(path);
+					invalidationCount.incrementAndGet();
+				}
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	public boolean isCacheable(long length) {
+		return length <= maxEntryBytes;
+	}
+
+	public synchronized void put(String path, Entry entry) {
+		if (!isCacheable(entry.getLength())) {
+			return;
+		}
+		remove(path);
+		entries.put(path, entry);
+		currentBytes += entry.getCachedBytes();
+
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (currentBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			currentBytes -= eldest.getValue().getCachedBytes();
+			it.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	public synchronized void invalidate(String path) {
+		if (remove(path) != null) {
+			invalidationCount.incrementAndGet();
+		}
+	}
+
+	public synchronized void invalidatePrefix(String pathPrefix) {
+		String prefix = pathPrefix.endsWith("/") ? pathPrefix : pathPrefix + "/";
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				currentBytes -= entry.getValue().getCachedBytes();
+				it.remove();
+				invalidationCount.incrementAndGet();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		invalidationCount.addAndGet(entries.size());
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	private Entry remove(String path) {
+		Entry removed = entries.remove(path);
+		if (removed != null) {
+			currentBytes -= removed.getCachedBytes();
+		}
+		return removed;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "StaticFileCache[entries=" + getEntryCount() + ", bytes=" + getCurrentBytes() + "/" + maxBytes
+				+ ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+}
@@ -0,0 +1,383 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class StaticFileHandler {
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	private static final int MAX_RANGES = 16;
+	private static final Set<String> COMPRESSIBLE_TYPES = Set.of("text/html", "text/css", "application/javascript");
+
+	private interface BodySource {
+		void write(OutputStream os, long position, long count) throws IOException;
+	}
+
+	private final Server server;
+	private final StaticFileCache fileCache;
+	private final long streamThreshold;
+	private final int compressionMinSize;
+
+	public StaticFileHandler(Server server, StaticFileCache fileCache, long streamThreshold, int compressionMinSize) {
+		this.server = server;
+		this.fileCache = fileCache;
+		this.streamThreshold = streamThreshold;
+		this.compressionMinSize = compressionMinSize;
+	}
+
+	public boolean serve(HttpExchange exchange, String filePath) throws IOException {
+		File file = new File(filePath);
+		StaticFileCache.Entry entry = fileCache.get(filePath, file);
+
+		if (entry == null) {
+			if (!file.exists() || file.isDirectory()) {
+				return false;
+			}
+			String mimeType = RequestHandlers.getMimeType(filePath);
+			// Files the cache would not keep are streamed rather than read into memory on every request.
+			// HTML has to be rewritten, so it is always read, and only compressed when it will be cached
+			if (!mimeType.equals("text/html")
+					&& (file.length() > streamThreshold || !fileCache.isCacheable(file.length()))) {
+				streamFile(exchange, file, mimeType);
+				return true;
+			}
+			entry = loadFile(filePath, file, mimeType);
+		}
+
+		byte[] body = entry.getBody();
+		String etag = entry.getEtag();
+		if (entry.getGzipBody() != null || entry.getDeflateBody() != null) {
+			exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+			String encoding = negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"),
+					entry.getGzipBody() != null, entry.getDeflateBody() != null);
+			if (encoding != null) {
+				// Each encoding is its own representation, so it needs its own strong validator
+				body = encoding.equals("gzip") ? entry.getGzipBody() : entry.getDeflateBody();
+				etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+				exchange.getResponseHeaders().set("Content-Encoding", encoding);
+			}
+		}
+
+		byte[] selected = body;
+		sendRepresentation(exchange, entry.getMimeType(), selected.length, etag, entry.getLastModified(),
+				(os, position, count) -> os.write(selected, (int) position, (int) count));
+		return true;
+	}
+
+	private StaticFileCache.Entry loadFile(String filePath, File file, String mimeType) throws IOException {
+		long lastModified = file.lastModified();
+		long fileLength = file.length();
+		long readStart = System.nanoTime();
+		byte[] body = Files.readAllBytes(file.toPath());
+		ServerMetrics.recordDiskTime(System.nanoTime() - readStart);
+
+		if (mimeType.equals("text/html")) {
+			String html = new String(body, StandardCharsets.UTF_8);
+			html = html.replace("action=\"host\"", "action=\"" + server.getHostUrl() + "\"");
+			body = html.getBytes(StandardCharsets.UTF_8);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+
+		byte[] gzipBody = null;
+		byte[] deflateBody = null;
+		// Compressed once per cached entry; a body the cache would drop is served as is
+		if (COMPRESSIBLE_TYPES.contains(mimeType) && body.length >= compressionMinSize
+				&& fileCache.isCacheable(body.length)) {
+			gzipBody = compress(body, true);
+			deflateBody = compress(body, false);
+		}
+
+		StaticFileCache.Entry entry = new StaticFileCache.Entry(body, mimeType, lastModified, fileLength, etag,
+				gzipBody, deflateBody);
+		fileCache.put(filePath, entry);
+		return entry;
+	}
+
+	// Returns null when compression would not make the body smaller
+	private static byte[] compress(byte[] body, boolean gzip) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 2 + 64);
+		try (DeflaterOutputStream dos = gzip ? new GZIPOutputStream(bos) : new DeflaterOutputStream(bos)) {
+			dos.write(body);
+		}
+		return bos.size() < body.length ? bos.toByteArray() : null;
+	}
+
+	static String negotiateEncoding(String acceptEncoding, boolean gzipAvailable, boolean deflateAvailable) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzipQuality = -1;
+		double deflateQuality = -1;
+		double wildcardQuality = 0;
+		for (String token : acceptEncoding.split(",")) {
+			String[] parts = token.trim().split(";");
+			String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (coding.equals("gzip") || coding.equals("x-gzip")) {
+				gzipQuality = quality;
+			} else if (coding.equals("deflate")) {
+				deflateQuality = quality;
+			} else if (coding.equals("*")) {
+				wildcardQuality = quality;
+			}
+		}
+		// Codings not listed explicitly inherit the wildcard's quality
+		if (gzipQuality < 0) {
+			gzipQuality = wildcardQuality;
+		}
+		if (deflateQuality < 0) {
+			deflateQuality = wildcardQuality;
+		}
+		if (!gzipAvailable) {
+			gzipQuality = 0;
+		}
+		if (!deflateAvailable) {
+			deflateQuality = 0;
+		}
+		if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+			return "gzip";
+		}
+		return deflateQuality > 0 ? "deflate" : null;
+	}
+
+	// Sends the file straight from the channel so large assets are never held on the heap
+	private void streamFile(HttpExchange exchange, File file, String mimeType) throws IOException {
+		Path path = file.toPath();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = channel.size();
+			long lastModified = file.lastModified();
+			// Too large to hash on every change, so the tag is derived from size and mtime
+			String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+			sendRepresentation(exchange, mimeType, length, etag, lastModified,
+					(os, position, count) -> transfer(channel, position, count, os));
+		}
+	}
+
+	private void sendRepresentation(HttpExchange exchange, String mimeType, long length, String etag,
+			long lastModified, BodySource source) throws IOException {
+		setValidators(exchange, etag, lastModified);
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		if (isNotModified(exchange, etag, lastModified)) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && isRangeApplicable(exchange, etag, lastModified)) {
+			List<long[]> ranges = parseRanges(range, length);
+			if (ranges != null) {
+				if (ranges.isEmpty()) {
+					exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+					exchange.sendResponseHeaders(416, -1);
+					exchange.close();
+				} else if (ranges.size() == 1) {
+					sendSingleRange(exchange, mimeType, length, ranges.get(0), source);
+				} else {
+					sendMultipleRanges(exchange, mimeType, length, ranges, source);
+				}
+				return;
+			}
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", mimeType);
+		exchange.sendResponseHeaders(200, length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			source.write(os, 0, length);
+		}
+	}
+
+	private void sendSingleRange(HttpExchange exchange, String mimeType, long length, long[] range,
+			BodySource source) throws IOException {
+		long count = range[1] - range[0] + 1;
+		exchange.getResponseHeaders().set("Content-Type", mimeType);
+		exchange.getResponseHeaders().set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+		exchange.sendResponseHeaders(206, count);
+		try (OutputStream os = exchange.getResponseBody()) {
+			source.write(os, range[0], count);
+		}
+	}
+
+	private void sendMultipleRanges(HttpExchange exchange, String mimeType, long length, List<long[]> ranges,
+			BodySource source) throws IOException {
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+		long contentLength = 0;
+		for (long[] range : ranges) {
+			byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: bytes "
+					+ range[0] + "-" + range[1] + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(header);
+			contentLength += header.length + (range[1] - range[0] + 1);
+		}
+		byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += trailer.length;
+
+		exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+		exchange.sendResponseHeaders(206, contentLength);
+		try (OutputStream os = exchange.getResponseBody()) {
+			for (int i = 0; i < ranges.size(); i++) {
+				long[] range = ranges.get(i);
+				os.write(partHeaders.get(i));
+				source.write(os, range[0], range[1] - range[0] + 1);
+			}
+			os.write(trailer);
+		}
+	}
+
+	private boolean isRangeApplicable(HttpExchange exchange, String etag, long lastModified) {
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return matchesAny(ifRange, etag, false);
+		}
+		long date = parseHttpDate(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	// Returns null when the header should be ignored and an empty list when nothing is satisfiable
+	static List<long[]> parseRanges(String header, long length) {
+		header = header.trim();
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long start;
+			long end;
+			try {
+				if (dash == 0) {
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (end < start) {
+						return null;
+					}
+					end = Math.min(end, length - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start < length) {
+				ranges.add(new long[] { start, end });
+			}
+		}
+		return ranges;
+	}
+
+	private void setValidators(HttpExchange exchange, String etag, long lastModified) {
+		exchange.getResponseHeaders().set("ETag", etag);
+		exchange.getResponseHeaders().set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+	}
+
+	private boolean isNotModified(HttpExchange exchange, String etag, long lastModified) {
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		if (ifNoneMatch != null) {
+			return matchesAny(ifNoneMatch, etag, true);
+		}
+
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			long since = parseHttpDate(ifModifiedSince);
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	static boolean matchesAny(String header, String etag, boolean weak) {
+		if (header.trim().equals("*")) {
+			return true;
+		}
+		String ours = weak ? stripWeak(etag) : etag;
+		for (String candidate : header.split(",")) {
+			String tag = candidate.trim();
+			if (weak) {
+				tag = stripWeak(tag);
+			} else if (tag.startsWith("W/")) {
+				continue;
+			}
+			if (tag.equals(ours)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String stripWeak(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	static long parseHttpDate(String value) {
+		try {
+			return ZonedDateTime.parse(value.trim(), HTTP_DATE).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	static void transfer(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+		WritableByteChannel target = Channels.newChannel(os);
+		long end = position + count;
+		while (position < end) {
+			long transferred = channel.transferTo(position, end - position, target);
+			if (transferred <= 0) {
+				throw new IOException("File shrank while it was being sent");
+			}
+			position += transferred;
+		}
+	}
+}
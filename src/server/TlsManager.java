@@ -0,0 +1,590 @@
+package server;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+// TLS for the HTTPS listener. The SSLContext is built once per Server and reused by every restart, so
+// its session cache, and with it session resumption, outlives the listener. The key manager re-reads
+// the keystore when the file changes, which lets a renewed certificate take effect on the next
+// handshake without touching the listener. Engines handed to the listener count full and resumed
+// handshakes and time them from the first record read to Finished.
+public class TlsManager {
+
+	static final String DEFAULT_PROTOCOLS = "TLSv1.3,TLSv1.2";
+	// AEAD suites only, with forward secrecy; AES-GCM first since it is hardware accelerated almost everywhere
+	static final String DEFAULT_CIPHER_SUITES = "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,"
+			+ "TLS_CHACHA20_POLY1305_SHA256,TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,"
+			+ "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,"
+			+ "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,"
+			+ "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256";
+
+	private final File keystoreFile;
+	private final String keystoreType;
+	private final char[] keystorePassword;
+	private final char[] keyPassword;
+	private final ReloadingKeyManager keyManager;
+	private final SSLContext sslContext;
+	private final String[] protocols;
+	private final String[] cipherSuites;
+	private final ScheduledExecutorService reloader;
+	private long loadedModified;
+	private long loadedLength;
+
+	private final LongAdder fullHandshakes = new LongAdder();
+	private final LongAdder resumedHandshakes = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+	private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	private final LongAdder reloadCount = new LongAdder();
+	private final LongAdder reloadFailureCount = new LongAdder();
+
+	public TlsManager(ServerConfig config) throws GeneralSecurityException, IOException {
+		this.keystoreFile = new File(config.getString("tls.keystore", "src/server/keystore.jks"));
+		this.keystoreType = config.getString("tls.keystoreType", "PKCS12");
+		this.keystorePassword = config.getString("tls.keystorePassword", "").toCharArray();
+		String keyPassword = config.getString("tls.keyPassword", "");
+		this.keyPassword = keyPassword.isEmpty() ? keystorePassword : keyPassword.toCharArray();
+		this.keyManager = new ReloadingKeyManager(loadKeyManager());
+
+		SSLContext delegate = SSLContext.getInstance("TLS");
+		delegate.init(new KeyManager[] { keyManager }, null, null);
+		SSLSessionContext sessions = delegate.getServerSessionContext();
+		sessions.setSessionCacheSize(config.getInt("tls.sessionCacheSize", 20000));
+		sessions.setSessionTimeout(config.getInt("tls.sessionTimeoutSeconds", 3600));
+		this.sslContext = new MeteredContext(new MeteredContextSpi(delegate), delegate.getProvider(),
+				delegate.getProtocol());
+
+		SSLParameters supported = delegate.getSupportedSSLParameters();
+		this.protocols = restrict("tls.protocols", config.getString("tls.protocols", DEFAULT_PROTOCOLS),
+				supported.getProtocols(), delegate.getDefaultSSLParameters().getProtocols());
+		this.cipherSuites = restrict("tls.cipherSuites", config.getString("tls.cipherSuites", DEFAULT_CIPHER_SUITES),
+				supported.getCipherSuites(), delegate.getDefaultSSLParameters().getCipherSuites());
+
+		long reloadIntervalMillis = config.getLong("tls.reloadIntervalMillis", 30_000);
+		if (reloadIntervalMillis > 0) {
+			this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "tls-keystore-reload");
+				thread.setDaemon(true);
+				return thread;
+			});
+			reloader.scheduleWithFixedDelay(this::reloadIfChanged, reloadIntervalMillis, reloadIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			this.reloader = null;
+		}
+	}
+
+	// Every connection gets the configured protocols and suites, in server preference order
+	public HttpsConfigurator getConfigurator() {
+		return new HttpsConfigurator(sslContext) {
+			@Override
+			public void configure(HttpsParameters params) {
+				SSLParameters parameters = new SSLParameters(cipherSuites, protocols);
+				parameters.setUseCipherSuitesOrder(true);
+				params.setSSLParameters(parameters);
+			}
+		};
+	}
+
+	// Called by the reload thread, and on restart so a replaced keystore is never missed
+	public synchronized void reloadIfChanged() {
+		long modified = keystoreFile.lastModified();
+		long length = keystoreFile.length();
+		if (modified == loadedModified && length == loadedLength) {
+			return;
+		}
+		try {
+			keyManager.update(loadKeyManager());
+			reloadCount.increment();
+			RequestHandlers.logger.info("Reloaded TLS keystore " + keystoreFile);
+		} catch (GeneralSecurityException | IOException e) {
+			// Keep serving the previous key; a half-written file gets another try once it changes again
+			reloadFailureCount.increment();
+			RequestHandlers.logger.warning("Could not reload TLS keystore " + keystoreFile + ": " + e.getMessage());
+		}
+	}
+
+	private synchronized X509ExtendedKeyManager loadKeyManager() throws GeneralSecurityException, IOException {
+		loadedModified = keystoreFile.lastModified();
+		loadedLength = keystoreFile.length();
+		KeyStore keyStore = KeyStore.getInstance(keystoreType);
+		try (InputStream is = new FileInputStream(keystoreFile)) {
+			keyStore.load(is, keystorePassword);
+		}
+		KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(keyStore, keyPassword);
+		for (KeyManager manager : factory.getKeyManagers()) {
+			if (manager instanceof X509ExtendedKeyManager) {
+				return (X509ExtendedKeyManager) manager;
+			}
+		}
+		throw new KeyManagementException("No X.509 key manager for " + keystoreFile);
+	}
+
+	// Configured names this JDK does not know are dropped; if none are left the JDK defaults apply
+	private static String[] restrict(String key, String configured, String[] supported, String[] defaults) {
+		List<String> supportedNames = Arrays.asList(supported);
+		List<String> names = new ArrayList<>();
+		for (String name : configured.split(",")) {
+			name = name.trim();
+			if (supportedNames.contains(name)) {
+				names.add(name);
+			} else if (!name.isEmpty()) {
+				RequestHandlers.logger.warning("Ignoring unsupported " + key + " entry " + name);
+			}
+		}
+		if (names.isEmpty()) {
+			RequestHandlers.logger.warning("No supported " + key + " configured, using the JDK defaults");
+			return defaults;
+		}
+		return names.toArray(new String[0]);
+	}
+
+	public long getFullHandshakeCount() {
+		return fullHandshakes.sum();
+	}
+
+	public long getResumedHandshakeCount() {
+		return resumedHandshakes.sum();
+	}
+
+	public long getFailedHandshakeCount() {
+		return failedHandshakes.sum();
+	}
+
+	public LatencyHistogram getHandshakeLatency() {
+		return handshakeLatency;
+	}
+
+	public long getReloadCount() {
+		return reloadCount.sum();
+	}
+
+	public long getReloadFailureCount() {
+		return reloadFailureCount.sum();
+	}
+
+	private static class MeteredContext extends SSLContext {
+		MeteredContext(SSLContextSpi spi, Provider provider, String protocol) {
+			super(spi, provider, protocol);
+		}
+	}
+
+	private class MeteredContextSpi extends SSLContextSpi {
+
+		private final SSLContext delegate;
+
+		MeteredContextSpi(SSLContext delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+			delegate.init(km, tm, sr);
+		}
+
+		@Override
+		protected SSLSocketFactory engineGetSocketFactory() {
+			return delegate.getSocketFactory();
+		}
+
+		@Override
+		protected SSLServerSocketFactory engineGetServerSocketFactory() {
+			return delegate.getServerSocketFactory();
+		}
+
+		@Override
+		protected SSLEngine engineCreateSSLEngine() {
+			return new MeteredEngine(delegate.createSSLEngine());
+		}
+
+		@Override
+		protected SSLEngine engineCreateSSLEngine(String host, int port) {
+			return new MeteredEngine(delegate.createSSLEngine(host, port));
+		}
+
+		@Override
+		protected SSLSessionContext engineGetServerSessionContext() {
+			return delegate.getServerSessionContext();
+		}
+
+		@Override
+		protected SSLSessionContext engineGetClientSessionContext() {
+			return delegate.getClientSessionContext();
+		}
+
+		@Override
+		protected SSLParameters engineGetDefaultSSLParameters() {
+			return delegate.getDefaultSSLParameters();
+		}
+
+		@Override
+		protected SSLParameters engineGetSupportedSSLParameters() {
+			return delegate.getSupportedSSLParameters();
+		}
+	}
+
+	// Watches wrap/unwrap results for the end of the initial handshake; everything else is passed through
+	private class MeteredEngine extends SSLEngine {
+
+		private final SSLEngine delegate;
+		private long startNanos;
+		private long startMillis;
+		private boolean handshakeDone;
+
+		MeteredEngine(SSLEngine delegate) {
+			super(delegate.getPeerHost(), delegate.getPeerPort());
+			this.delegate = delegate;
+		}
+
+		@Override
+		public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+			beginHandshakeTiming();
+			try {
+				return observe(delegate.wrap(srcs, offset, length, dst));
+			} catch (SSLException e) {
+				handshakeFailed();
+				throw e;
+			}
+		}
+
+		@Override
+		public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+			beginHandshakeTiming();
+			try {
+				return observe(delegate.unwrap(src, dsts, offset, length));
+			} catch (SSLException e) {
+				handshakeFailed();
+				throw e;
+			}
+		}
+
+		private void beginHandshakeTiming() {
+			if (startNanos == 0) {
+				startNanos = System.nanoTime();
+				startMillis = System.currentTimeMillis();
+			}
+		}
+
+		private SSLEngineResult observe(SSLEngineResult result) {
+			if (!handshakeDone && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+				handshakeDone = true;
+				handshakeLatency.recordNanos(System.nanoTime() - startNanos);
+				// A resumed session was created by an earlier handshake
+				SSLSession session = delegate.getSession();
+				if (session.getCreationTime() < startMillis) {
+					resumedHandshakes.increment();
+				} else {
+					fullHandshakes.increment();
+				}
+			}
+			return result;
+		}
+
+		private void handshakeFailed() {
+			if (!handshakeDone) {
+				handshakeDone = true;
+				failedHandshakes.increment();
+			}
+		}
+
+		@Override
+		public Runnable getDelegatedTask() {
+			return delegate.getDelegatedTask();
+		}
+
+		@Override
+		public void closeInbound() throws SSLException {
+			delegate.closeInbound();
+		}
+
+		@Override
+		public boolean isInboundDone() {
+			return delegate.isInboundDone();
+		}
+
+		@Override
+		public void closeOutbound() {
+			delegate.closeOutbound();
+		}
+
+		@Override
+		public boolean isOutboundDone() {
+			return delegate.isOutboundDone();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public String[] getEnabledCipherSuites() {
+			return delegate.getEnabledCipherSuites();
+		}
+
+		@Override
+		public void setEnabledCipherSuites(String[] suites) {
+			delegate.setEnabledCipherSuites(suites);
+		}
+
+		@Override
+		public String[] getSupportedProtocols() {
+			return delegate.getSupportedProtocols();
+		}
+
+		@Override
+		public String[] getEnabledProtocols() {
+			return delegate.getEnabledProtocols();
+		}
+
+		@Override
+		public void setEnabledProtocols(String[] protocols) {
+			delegate.setEnabledProtocols(protocols);
+		}
+
+		@Override
+		public SSLSession getSession() {
+			return delegate.getSession();
+		}
+
+		@Override
+		public SSLSession getHandshakeSession() {
+			return delegate.getHandshakeSession();
+		}
+
+		@Override
+		public void beginHandshake() throws SSLException {
+			delegate.beginHandshake();
+		}
+
+		@Override
+		public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+			return delegate.getHandshakeStatus();
+		}
+
+		@Override
+		public void setUseClientMode(boolean mode) {
+			delegate.setUseClientMode(mode);
+		}
+
+		@Override
+		public boolean getUseClientMode() {
+			return delegate.getUseClientMode();
+		}
+
+		@Override
+		public void setNeedClientAuth(boolean need) {
+			delegate.setNeedClientAuth(need);
+		}
+
+		@Override
+		public boolean getNeedClientAuth() {
+			return delegate.getNeedClientAuth();
+		}
+
+		@Override
+		public void setWantClientAuth(boolean want) {
+			delegate.setWantClientAuth(want);
+		}
+
+		@Override
+		public boolean getWantClientAuth() {
+			return delegate.getWantClientAuth();
+		}
+
+		@Override
+		public void setEnableSessionCreation(boolean flag) {
+			delegate.setEnableSessionCreation(flag);
+		}
+
+		@Override
+		public boolean getEnableSessionCreation() {
+			return delegate.getEnableSessionCreation();
+		}
+
+		@Override
+		public SSLParameters getSSLParameters() {
+			return delegate.getSSLParameters();
+		}
+
+		@Override
+		public void setSSLParameters(SSLParameters params) {
+			delegate.setSSLParameters(params);
+		}
+
+		@Override
+		public String getApplicationProtocol() {
+			return delegate.getApplicationProtocol();
+		}
+
+		@Override
+		public String getHandshakeApplicationProtocol() {
+			return delegate.getHandshakeApplicationProtocol();
+		}
+
+		@Override
+		public void setHandshakeApplicationProtocolSelector(BiFunction<SSLEngine, List<String>, String> selector) {
+			delegate.setHandshakeApplicationProtocolSelector(selector);
+		}
+
+		@Override
+		public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+			return delegate.getHandshakeApplicationProtocolSelector();
+		}
+	}
+
+	// One loaded keystore; never changed once built, a reload makes a new one
+	private static class KeySnapshot {
+		final long generation;
+		final X509ExtendedKeyManager keyManager;
+
+		KeySnapshot(long generation, X509ExtendedKeyManager keyManager) {
+			this.generation = generation;
+			this.keyManager = keyManager;
+		}
+	}
+
+	// Hands every call to the key manager of the most recently loaded keystore. The JDK chooses an alias
+	// and then asks for its chain and key in separate calls, so aliases are tagged with the generation of
+	// the keystore they came from and resolved against that same snapshot, even if a reload happened in
+	// between. The snapshot before the last reload is kept for handshakes that were half way through it.
+	private static class ReloadingKeyManager extends X509ExtendedKeyManager {
+
+		private volatile KeySnapshot current;
+		private volatile KeySnapshot previous;
+
+		ReloadingKeyManager(X509ExtendedKeyManager keyManager) {
+			this.current = new KeySnapshot(0, keyManager);
+		}
+
+		synchronized void update(X509ExtendedKeyManager keyManager) {
+			KeySnapshot replaced = current;
+			previous = replaced;
+			current = new KeySnapshot(replaced.generation + 1, keyManager);
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.getClientAliases(keyType, issuers));
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.chooseClientAlias(keyType, issuers, socket));
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.chooseEngineClientAlias(keyType, issuers, engine));
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.getServerAliases(keyType, issuers));
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.chooseServerAlias(keyType, issuers, socket));
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			KeySnapshot snapshot = current;
+			return tag(snapshot, snapshot.keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			KeySnapshot snapshot = snapshotOf(alias);
+			return snapshot != null ? snapshot.keyManager.getCertificateChain(untag(alias)) : null;
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			KeySnapshot snapshot = snapshotOf(alias);
+			return snapshot != null ? snapshot.keyManager.getPrivateKey(untag(alias)) : null;
+		}
+
+		private static String tag(KeySnapshot snapshot, String alias) {
+			return alias != null ? snapshot.generation + ":" + alias : null;
+		}
+
+		private static String[] tag(KeySnapshot snapshot, String[] aliases) {
+			if (aliases == null) {
+				return null;
+			}
+			String[] tagged = new String[aliases.length];
+			for (int i = 0; i < aliases.length; i++) {
+				tagged[i] = tag(snapshot, aliases[i]);
+			}
+			return tagged;
+		}
+
+		private static String untag(String alias) {
+			return alias.substring(alias.indexOf(':') + 1);
+		}
+
+		// Null for an alias this key manager did not hand out, or one from a keystore two reloads ago
+		private KeySnapshot snapshotOf(String alias) {
+			int separator = alias != null ? alias.indexOf(':') : -1;
+			if (separator <= 0) {
+				return null;
+			}
+			long generation;
+			try {
+				generation = Long.parseLong(alias.substring(0, separator));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			KeySnapshot snapshot = current;
+			if (snapshot.generation == generation) {
+				return snapshot;
+			}
+			snapshot = previous;
+			return snapshot != null && snapshot.generation == generation ? snapshot : null;
+		}
+	}
+}
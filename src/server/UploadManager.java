@@ -0,0 +1,285 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+public class UploadManager {
+
+	public static class UploadException extends Exception {
+		private final int statusCode;
+
+		public UploadException(int statusCode, String message) {
+			super(message);
+			this.statusCode = statusCode;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+	}
+
+	public static class Session {
+		private final String id;
+		private final String username;
+		private final String projectName;
+		private final String fileName;
+		private final long fileSize;
+		private final File partFile;
+		private long offset;
+		private volatile long lastActivity = System.currentTimeMillis();
+
+		Session(String id, String username, String projectName, String fileName, long fileSize, File partFile) {
+			this.id = id;
+			this.username = username;
+			this.projectName = projectName;
+			this.fileName = fileName;
+			this.fileSize = fileSize;
+			this.partFile = partFile;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getProjectName() {
+			return projectName;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getFileSize() {
+			return fileSize;
+		}
+
+		public synchronized long getOffset() {
+			return offset;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final File uploadDir;
+	private final long sessionTimeoutMillis;
+	private final long maxFileSize;
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+	public UploadManager(File uploadDir, long sessionTimeoutMillis, long maxFileSize) {
+		this.uploadDir = uploadDir;
+		this.sessionTimeoutMillis = sessionTimeoutMillis;
+		this.maxFileSize = maxFileSize;
+		uploadDir.mkdirs();
+		restoreSessions();
+	}
+
+	public Session createSession(String username, String projectName, String fileName, long fileSize)
+			throws IOException {
+		expireIdleSessions();
+		String id = UUID.randomUUID().toString().replace("-", "");
+		Session session = new Session(id, username, projectName, fileName, fileSize, new File(uploadDir, id + ".part"));
+		Files.newOutputStream(session.partFile.toPath()).close();
+
+		Properties properties = new Properties();
+		properties.setProperty("username", username);
+		properties.setProperty("projectName", projectName);
+		properties.setProperty("fileName", fileName);
+		properties.setProperty("fileSize", Long.toString(fileSize));
+		try (OutputStream os = new FileOutputStream(new File(uploadDir, id + ".session"))) {
+			properties.store(os, null);
+		}
+
+		sessions.put(id, session);
+		return session;
+	}
+
+	public Session getSession(String id) {
+		return id != null ? sessions.get(id) : null;
+	}
+
+	public long writeChunk(Session session, long offset, InputStream body, String checksum)
+			throws IOException, UploadException {
+		synchronized (session) {
+			if (offset != session.offset) {
+				throw new UploadException(409, Long.toString(session.offset));
+			}
+			session.lastActivity = System.currentTimeMillis();
+
+			CRC32 crc = new CRC32();
+			long written;
+			try (FileChannel channel = FileChannel.open(session.partFile.toPath(), StandardOpenOption.WRITE)) {
+				try {
+					written = copy(body, channel, offset, crc, session.fileSize - offset);
+				} catch (IOException e) {
+					// A chunk is only kept once it arrived completely; the client resumes from the last offset
+					channel.truncate(offset);
+					throw e;
+				}
+				if (checksum != null && !checksum.equalsIgnoreCase(Long.toHexString(crc.getValue()))) {
+					// Drop the corrupt chunk so the client can resend it from the same offset
+					channel.truncate(offset);
+					throw new UploadException(422, "Checksum mismatch.");
+				}
+			}
+			session.offset += written;
+			return session.offset;
+		}
+	}
+
+	public File completeSession(Session session, File destination) throws IOException, UploadException {
+		synchronized (session) {
+			if (session.offset != session.fileSize) {
+				throw new UploadException(409, Long.toString(session.offset));
+			}
+			try (FileChannel channel = FileChannel.open(session.partFile.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			moveIntoPlace(session.partFile, destination);
+			removeSession(session);
+			return destination;
+		}
+	}
+
+	public void abortSession(Session session) {
+		synchronized (session) {
+			removeSession(session);
+			session.partFile.delete();
+		}
+	}
+
+	// Writes the whole stream to a temporary file and renames it over the destination, so a failed
+	// upload never leaves a truncated file behind
+	public long receiveFile(InputStream body, File destination, long expectedSize) throws IOException {
+		File partFile = new File(uploadDir, UUID.randomUUID().toString().replace("-", "") + ".part");
+		try {
+			long written;
+			try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				written = copy(body, channel, 0, null, expectedSize >= 0 ? expectedSize : maxFileSize);
+				if (expectedSize >= 0 && written != expectedSize) {
+					throw new IOException("Upload ended after " + written + " of " + expectedSize + " bytes");
+				}
+				channel.force(true);
+			}
+			moveIntoPlace(partFile, destination);
+			return written;
+		} finally {
+			partFile.delete();
+		}
+	}
+
+	// Same as receiveFile for content that is already in memory
+	public void receiveFile(byte[] data, int length, File destination) throws IOException {
+		File partFile = new File(uploadDir, UUID.randomUUID().toString().replace("-", "") + ".part");
+		try {
+			try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(data, 0, length);
+				while (byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer);
+				}
+				channel.force(true);
+			}
+			moveIntoPlace(partFile, destination);
+		} finally {
+			partFile.delete();
+		}
+	}
+
+	private long copy(InputStream is, FileChannel channel, long position, CRC32 crc, long limit) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		long written = 0;
+		int bytesRead;
+		while ((bytesRead = is.read(buffer)) != -1) {
+			if (written + bytesRead > limit) {
+				throw new IOException("Upload is larger than the declared file size");
+			}
+			if (crc != null) {
+				crc.update(buffer, 0, bytesRead);
+			}
+			byteBuffer.clear().limit(bytesRead);
+			long writeStart = System.nanoTime();
+			while (byteBuffer.hasRemaining()) {
+				written += channel.write(byteBuffer, position + written);
+			}
+			ServerMetrics.recordDiskTime(System.nanoTime() - writeStart);
+		}
+		return written;
+	}
+
+	private void moveIntoPlace(File source, File destination) throws IOException {
+		Path target = destination.toPath();
+		Files.createDirectories(target.getParent());
+		try {
+			Files.move(source.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void removeSession(Session session) {
+		sessions.remove(session.id);
+		new File(uploadDir, session.id + ".session").delete();
+	}
+
+	private void expireIdleSessions() {
+		long now = System.currentTimeMillis();
+		for (Session session : sessions.values()) {
+			if (now - session.lastActivity > sessionTimeoutMillis) {
+				abortSession(session);
+			}
+		}
+	}
+
+	private void restoreSessions() {
+		File[] files = uploadDir.listFiles((dir, name) -> name.endsWith(".session"));
+		if (files == null) {
+			return;
+		}
+		for (File sessionFile : files) {
+			String id = sessionFile.getName().substring(0, sessionFile.getName().length() - ".session".length());
+			File partFile = new File(uploadDir, id + ".part");
+			Properties properties = new Properties();
+			try (InputStream is = new FileInputStream(sessionFile)) {
+				properties.load(is);
+				Session session = new Session(id, properties.getProperty("username"),
+						properties.getProperty("projectName"), properties.getProperty("fileName"),
+						Long.parseLong(properties.getProperty("fileSize")), partFile);
+				session.offset = partFile.length();
+				sessions.put(id, session);
+			} catch (IOException | RuntimeException e) {
+				sessionFile.delete();
+				partFile.delete();
+			}
+		}
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public int getActiveSessionCount() {
+		return sessions.size();
+	}
+}
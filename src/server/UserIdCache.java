@@ -0,0 +1,106 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UserIdCache {
+
+	private static class Entry {
+		final int userId;
+		final long expiresAt;
+
+		Entry(int userId, long expiresAt) {
+			this.userId = userId;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public UserIdCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlMillis = ttlMillis;
+	}
+
+	public Integer get(String username) {
+		Entry entry = entries.get(username);
+		if (entry != null) {
+			if (entry.expiresAt > System.currentTimeMillis()) {
+				hitCount.incrementAndGet();
+				return entry.userId;
+			}
+			entries.remove(username, entry);
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	public void put(String username, int userId) {
+		if (username == null) {
+			return;
+		}
+		if (entries.size() >= maxEntries && !entries.containsKey(username)) {
+			evict();
+		}
+		entries.put(username, new Entry(userId, System.currentTimeMillis() + ttlMillis));
+	}
+
+	public void invalidate(String username) {
+		if (username != null) {
+			entries.remove(username);
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	// Drops expired entries first, then an arbitrary tenth of the cache if it is still full
+	private void evict() {
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.expiresAt <= now);
+		int toRemove = entries.size() - maxEntries + Math.max(1, maxEntries / 10);
+		Iterator<String> it = entries.keySet().iterator();
+		while (toRemove-- > 0 && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "UserIdCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+				+ ", hitRatio=" + String.format("%.2f", getHitRatio()) + "]";
+	}
+}
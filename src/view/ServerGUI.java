@@ -1,5 +1,7 @@
 package view;
 
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.ObservableList;
@@ -9,13 +11,16 @@ import javafx.scene.layout.VBox;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import server.Server;
+import server.ServerExecutor;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class ServerGUI extends Application {
@@ -69,8 +74,24 @@ public class ServerGUI extends Application {
 		// SSL configuration
 		CheckBox sslCheckBox = new CheckBox("Enable SSL");
 
+		// Executor configuration
+		ComboBox<ServerExecutor.Mode> executorComboBox = new ComboBox<>();
+		executorComboBox.getItems().addAll(ServerExecutor.Mode.values());
+		executorComboBox.setValue(webServerManager.getExecutionMode());
+		TextField maxThreadsField = new TextField(String.valueOf(webServerManager.getMaxThreads()));
+		Button applyExecutorButton = new Button("Apply Executor");
+
 		// Label to display server status
 		Label serverStatusLabel = new Label("Server is stopped.");
+		Label executorStatusLabel = new Label();
+		Timeline executorStatusTimeline = new Timeline(new KeyFrame(Duration.seconds(1),
+				e -> executorStatusLabel.setText("Executor: " + webServerManager.getExecutionMode() + ", active threads: "
+						+ webServerManager.getActiveThreadCount() + ", queued: " + webServerManager.getQueueDepth()
+						+ (webServerManager.isDraining()
+								? ", draining: " + webServerManager.getDrainingExchangeCount() + " requests left"
+								: ""))));
+		executorStatusTimeline.setCycleCount(Timeline.INDEFINITE);
+		executorStatusTimeline.play();
 
 		refreshButton.setOnAction(e -> {
 			loadAccount(accountListView);
@@ -127,8 +148,14 @@ public class ServerGUI extends Application {
 			confirmationAlert.setContentText("Are you sure you want to stop the server?");
 			confirmationAlert.showAndWait().ifPresent(response -> {
 				if (response == ButtonType.OK) {
-					webServerManager.stopServer();
-					serverStatusLabel.setText("Server is stopped");
+					// Waits for requests in progress; the executor status line shows how many are left
+					serverStatusLabel.setText("Server is stopping...");
+					Thread stopThread = new Thread(() -> {
+						webServerManager.stopServer();
+						Platform.runLater(() -> serverStatusLabel.setText("Server is stopped"));
+					}, "server-stop");
+					stopThread.setDaemon(true);
+					stopThread.start();
 				}
 			});
 		});
@@ -140,12 +167,20 @@ public class ServerGUI extends Application {
 			if (!webServerManager.isRunning()) {
 				showServerNotRunningAlert();
 			} else {
-				try {
-					webServerManager.restartServer();
-					serverStatusLabel.setText("Server is restarted. Server is running on " + ip + ":" + port);
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
+				// Binding the new listener can wait for the old one to release the port
+				serverStatusLabel.setText("Server is restarting...");
+				Thread restartThread = new Thread(() -> {
+					try {
+						webServerManager.restartServer();
+						Platform.runLater(() -> serverStatusLabel
+								.setText("Server is restarted. Server is running on " + ip + ":" + port));
+					} catch (Exception ex) {
+						ex.printStackTrace();
+						Platform.runLater(() -> serverStatusLabel.setText("Server restart failed"));
+					}
+				}, "server-restart");
+				restartThread.setDaemon(true);
+				restartThread.start();
 			}
 		});
 
@@ -193,6 +228,21 @@ public class ServerGUI extends Application {
 			}
 		});
 
+		// Apply executor change, used on the next start or restart
+		applyExecutorButton.setOnAction(e -> {
+			try {
+				int maxThreads = Integer.parseInt(maxThreadsField.getText().trim());
+				if (maxThreads <= 0) {
+					showInvalidThreadCountAlert();
+				} else {
+					webServerManager.setExecutionMode(executorComboBox.getValue());
+					webServerManager.setMaxThreads(maxThreads);
+				}
+			} catch (NumberFormatException ex) {
+				showInvalidThreadCountAlert();
+			}
+		});
+
 		// Toggle SSL
 		sslCheckBox.setOnAction(e -> webServerManager.enableSSL(sslCheckBox.isSelected()));
 
@@ -242,10 +292,15 @@ public class ServerGUI extends Application {
 		configGrid.add(ipField, 1, 2);
 		configGrid.add(applyIpButton, 2, 2);
 		configGrid.add(sslCheckBox, 0, 3, 3, 1);
+		configGrid.add(new Label("Executor:"), 0, 4);
+		configGrid.add(executorComboBox, 1, 4);
+		configGrid.add(new Label("Max Threads:"), 0, 5);
+		configGrid.add(maxThreadsField, 1, 5);
+		configGrid.add(applyExecutorButton, 2, 5);
 
 		controlLayout.getChildren().addAll(new Label("Website Management"), accountListView, basicControlBox,
 				new Label("Server Control"), serverControlBox, new Label("Configuration"), configGrid,
-				new Label("Server Logs"), logListView, serverStatusLabel);
+				new Label("Server Logs"), logListView, serverStatusLabel, executorStatusLabel);
 
 		mainLayout.getChildren().add(controlLayout);
 
@@ -258,11 +313,9 @@ public class ServerGUI extends Application {
 
 	private void loadAccount(ListView<String> accountListView) {
 		accountListView.getItems().clear();
-		File[] websites = htmlFolder.listFiles();
+		List<String> websites = webServerManager.getRequestHandlers().getSiteIndex().list("", false);
 		if (websites != null) {
-			for (File website : websites) {
-				accountListView.getItems().add(website.getName());
-			}
+			accountListView.getItems().addAll(websites);
 		}
 	}
 
@@ -289,6 +342,8 @@ public class ServerGUI extends Application {
 				}
 
 				if (accountFound) {
+					webServerManager.getRequestHandlers().getUserIdCache().invalidate(selectedAccount);
+					webServerManager.getRequestHandlers().getSessionStore().revokeUser(selectedAccount);
 					File userFolder = new File(htmlFolder, selectedAccount);
 					if (userFolder.exists() && userFolder.isDirectory()) {
 						for (File file : userFolder.listFiles()) {
@@ -296,6 +351,7 @@ public class ServerGUI extends Application {
 						}
 						userFolder.delete();
 					}
+					webServerManager.getRequestHandlers().getSiteIndex().refresh(userFolder);
 				}
 
 			} catch (IOException e) {
@@ -331,6 +387,14 @@ public class ServerGUI extends Application {
 		alert.showAndWait();
 	}
 
+	private void showInvalidThreadCountAlert() {
+		Alert alert = new Alert(Alert.AlertType.ERROR);
+		alert.setTitle("Invalid Thread Count");
+		alert.setHeaderText(null);
+		alert.setContentText("Max threads must be a positive number!");
+		alert.showAndWait();
+	}
+
 	private void showServerNotRunningAlert() {
 		Alert alert = new Alert(Alert.AlertType.ERROR);
 		alert.setTitle("Server Not Running");